@@ -5,12 +5,18 @@ import com.mattwilliams.decisiontree.base.mapreduce.MRForestBuilder;
 import com.mattwilliams.decisiontree.io.AbstractDataSetBuilder;
 import com.mattwilliams.decisiontree.io.AbstractFeatureExtractor;
 import com.mattwilliams.decisiontree.io.AbstractMetricsWriter;
+import com.mattwilliams.decisiontree.io.ForestWriter;
 import com.mattwilliams.decisiontree.io.cassandra.CassandraConnectionInfo;
 import com.mattwilliams.decisiontree.io.cassandra.CassandraDataSetBuilder;
 import com.mattwilliams.decisiontree.io.cassandra.CassandraFeatureExtractor;
 import com.mattwilliams.decisiontree.io.cassandra.CassandraMetricsWriter;
+import com.mattwilliams.decisiontree.server.ModelHolder;
+import com.mattwilliams.decisiontree.server.ScoringServer;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.NumberFormat;
 
 /**
@@ -55,13 +61,23 @@ public class Main {
 
             } else if (args[0].equals("-train")) {
 
-                String label1 = "UP";
-                String label2 = "DOWN";
                 int numberOfTrees = 7;
+                Path modelFile = Paths.get("forest" + ModelHolder.BINARY_EXTENSION);
 
-                if (args.length == 2) {
+                if (args.length >= 2) {
                     numberOfTrees = Integer.valueOf(args[1]);
                 }
+
+                if (args.length >= 3) {
+                    modelFile = Paths.get(args[2]);
+                }
+                String modelName = modelFile.getFileName().toString();
+
+                if (args.length > 3 || !(modelName.endsWith(ModelHolder.BINARY_EXTENSION)
+                        || modelName.endsWith(MappedForest.EXTENSION))) {
+                    printUsage();
+                    return;
+                }
                 String dataSource = "long"; // Use the long table for this example
 
                 AbstractDataSetBuilder dataSetBuilder = new CassandraDataSetBuilder(trainingRatio, connection);
@@ -75,26 +91,85 @@ public class Main {
                 Matrix trainingData = dataSetBuilder.getTrainingSet();
                 Matrix testData = dataSetBuilder.getTestSet();
 
-                System.out.print("Building decision tree for labels: " + label1 + ", " + label2 + "...");
-                Trainer trainer = new MRForestBuilder(numberOfTrees, label1, label2);
+                System.out.print("Building decision tree for labels: " + trainingData.getLabelDictionary() + "...");
+                Trainer trainer = new MRForestBuilder(numberOfTrees);
                 Predictor predictor = trainer.train(trainingData);
                 System.out.println("Done!");
 
+                if (predictor instanceof RandomForest) {
+                    RandomForest forest = (RandomForest) predictor;
+
+                    // Never replace a served model with a partial forest
+                    if (forest.getTrees().size() < numberOfTrees) {
+                        System.out.println("Only " + forest.getTrees().size() + " of " + numberOfTrees
+                                + " trees were grown, not saving the forest");
+                        return;
+                    }
+                    System.out.println(forest.compact());
+
+                    // Save the forest so it can be served with -serve. Both writers move the
+                    // finished file into place, so a server watching the directory never reads half a model.
+                    if (modelName.endsWith(MappedForest.EXTENSION)) {
+                        MappedForest.write(forest, modelFile);
+                    } else {
+                        ForestWriter.save(forest, modelFile);
+                    }
+                    System.out.println("Saved forest to " + modelFile);
+                    predictor = forest.compile();
+                }
+
                 System.out.print("Making predictions...");
                 AbstractMetricsWriter metrics = new CassandraMetricsWriter(connection);
 
-                for (Row row : testData.rows()) {
-                    String predicted = predictor.predict(row);
-                    metrics.addSample(row.getLabel(), predicted);
-                }
+                metrics.addSamples(new ParallelScorer(predictor).score(testData));
                 System.out.println("Done!");
                 System.out.println();
                 metrics.writeMetrics();
                 System.out.println("All Done!");
+
+            } else if (args[0].equals("-serve")) {
+
+                if (args.length == 2 || args.length == 3) {
+                    Path modelPath = Paths.get(args[1]);
+                    int port = args.length == 3 ? Integer.valueOf(args[2]) : 9090;
+
+                    // Serve a model file, or the newest model in a directory and any
+                    // model written to it later
+                    ModelHolder model = new ModelHolder();
+
+                    if (Files.isDirectory(modelPath)) {
+                        model.watch(modelPath);
+                    } else {
+                        model.load(modelPath);
+                    }
+
+                    if (model.getModel() == null) {
+                        System.out.println("No model found in " + modelPath);
+                        return;
+                    }
+                    ScoringServer server = new ScoringServer(model);
+                    server.start(port);
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        try {
+                            server.close();
+                            model.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }));
+                    System.out.println("Serving model version " + model.modelVersion() + " from "
+                            + model.getModel().getSource() + " on port " + server.getPort());
+                    server.awaitClose();
+
+                } else {
+                    printUsage();
+                }
             }
 
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -102,8 +177,13 @@ public class Main {
         System.out.println("Usage for building feature matrix: java -jar MapReduceApp.jar -build [inputFile]");
         System.out.println("inputFile - path to a raw data input file (.csv)");
         System.out.println();
-        System.out.println("Usage for training algorithm and writing results: java -jar MapredApp.jar -train [numTrees]");
+        System.out.println("Usage for training algorithm and writing results: java -jar MapredApp.jar -train [numTrees] [modelFile]");
         System.out.println("numTrees - number of trees to grow, default = 7");
+        System.out.println("modelFile - file to save the forest to (.forest or .mforest), default = forest.forest");
+        System.out.println();
+        System.out.println("Usage for serving predictions: java -jar MapredApp.jar -serve [modelFile] [port]");
+        System.out.println("modelFile - path to a trained forest (.forest, .mforest or .json), or a directory to watch for new ones");
+        System.out.println("port - port to listen on, default = 9090");
         System.out.println();
     }
 }
@@ -7,21 +7,85 @@ import java.util.List;
 /**
  * The BestSplitStrategy interface represents an algorithm for finding the optimal
  * split for a given set of data for use in building a decision tree.
+ *
+ * findBestSplit returns its result as an immutable SplitCandidate. Strategies that
+ * implement it without keeping per-call state can be shared between threads. The older
+ * evaluateSplits/bestFeature/featureValue methods keep the result in the strategy, so a
+ * strategy that only implements those is wrapped in a lock by the default findBestSplit.
  */
 public interface BestSplitStrategy {
 
     /**
-     * Given a list of features and data, evaluate all possible splits to determine the optimal
-     * split. The data can have one of two possible labels.
+     * Called once per training run, before any splits are evaluated, with the matrix the
+     * tree will be grown on. Every matrix passed to evaluateSplits during the run is a
+     * subset of it. Strategies can use this to precompute per-row data.
+     *
+     * @param matrix - all rows used to grow the tree
+     */
+    default void prepare(Matrix matrix) {
+    }
+
+    /**
+     * Return a new strategy with the same settings and any state prepared for the current
+     * training run, which can evaluate splits on another thread at the same time as this
+     * one. Used by DecisionTreeBuilder to grow subtrees in parallel. Forks of random
+     * strategies get their own random stream drawn from this one, so forking in the same
+     * order gives the same results.
+     *
+     * @return an independent copy of this strategy
+     * @throws UnsupportedOperationException if the strategy can't be forked
+     */
+    default BestSplitStrategy fork() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't be forked");
+    }
+
+    /**
+     * Set the minimum number of rows on each side of a split. Strategies that support it
+     * skip thresholds leaving fewer rows on a side, so the best split they find meets the
+     * limit whenever some threshold they try does. The default ignores the limit.
      *
-     * @// TODO: 9/30/17 Should eventually not require label1 and label2, should figure it out
+     * @param minSamplesLeaf - the minimum number of rows per side, at least 1
+     */
+    default void setMinSamplesLeaf(int minSamplesLeaf) {
+    }
+
+    /**
+     * Returns whether the strategy sweeps every threshold of each feature in sorted order.
+     * DecisionTreeBuilder grows trees for such strategies on a presorted view, so features
+     * are sorted once per training run instead of at every node. The default is false.
+     *
+     * @return <code>true</code> if the strategy wants presorted rows
+     */
+    default boolean isExhaustive() {
+        return false;
+    }
+
+    /**
+     * Given a list of features and data, find the optimal split. The default implementation
+     * calls evaluateSplits, bestFeature, featureValue and bestGain while holding this
+     * strategy's lock.
      *
      * @param featureIndices - a list of features
      * @param rows - data to split
-     * @param label1 - the first possible label
-     * @param label2 - the second possible label
+     * @return the best split found
      */
-    void evaluateSplits(List<Integer> featureIndices, Matrix rows, String label1, String label2);
+    default SplitCandidate findBestSplit(List<Integer> featureIndices, Matrix rows) {
+
+        synchronized (this) {
+            evaluateSplits(featureIndices, rows);
+            return new SplitCandidate(bestFeature(), featureValue(), bestGain());
+        }
+    }
+
+    /**
+     * Given a list of features and data, evaluate all possible splits to determine the optimal
+     * split. The data can have any number of labels, which are counted by label id (see
+     * Matrix.labelIdAt).
+     *
+     * @param featureIndices - a list of features
+     * @param rows - data to split
+     */
+    void evaluateSplits(List<Integer> featureIndices, Matrix rows);
 
     /**
      * Return the index of the best feature to split on based on last evaluation
@@ -34,4 +98,13 @@ public interface BestSplitStrategy {
      * @return the optimal feature value to split on based on the last evaluation
      */
     double featureValue();
+
+    /**
+     * Return the gain of the best split based on the last evaluation. Strategies that
+     * don't measure gain return NaN, the default.
+     * @return the gain of the best split, or NaN if unknown
+     */
+    default double bestGain() {
+        return Double.NaN;
+    }
 }
@@ -0,0 +1,126 @@
+package com.mattwilliams.decisiontree.algorithms;
+
+import com.mattwilliams.decisiontree.base.Matrix;
+
+import java.util.Arrays;
+
+/**
+ * FeatureBins quantizes every feature of a matrix into at most 256 bins, using the
+ * feature's quantiles as bin edges. A row is in bin b of a feature if its value is at
+ * least edge b-1 and less than edge b, so splitting on edge b sends bins 0 to b left.
+ *
+ * @author Matt Williams
+ */
+class FeatureBins {
+
+    /**
+     * The largest number of bins a feature can have (bin codes are stored as bytes)
+     */
+    static final int MAX_BINS = 256;
+
+    /**
+     * Bin edges for each feature, in ascending order
+     */
+    private final double[][] edges;
+
+    /**
+     * Bin code for each feature, indexed by row id
+     */
+    private final byte[][] codes;
+
+    /**
+     * Quantize the features of every row in the given matrix
+     * @param matrix - the rows to bin
+     * @param numBins - the maximum number of bins per feature (2 - 256)
+     */
+    FeatureBins(Matrix matrix, int numBins) {
+
+        if (numBins < 2 || numBins > MAX_BINS) {
+            throw new IllegalArgumentException("Number of bins must be between 2 and " + MAX_BINS);
+        }
+        int numFeatures = matrix.numFeatures();
+        int numRowIds = 0;
+
+        for (int i = 0; i < matrix.size(); ++i) {
+            numRowIds = Math.max(numRowIds, matrix.rowId(i) + 1);
+        }
+        edges = new double[numFeatures][];
+        codes = new byte[numFeatures][numRowIds];
+
+        for (int feature = 0; feature < numFeatures; ++feature) {
+            double[] values = matrix.featureValues(feature);
+            Arrays.sort(values);
+            edges[feature] = quantileEdges(values, numBins);
+
+            for (int i = 0; i < matrix.size(); ++i) {
+                codes[feature][matrix.rowId(i)] = (byte) binOf(edges[feature], matrix.featureAt(i, feature));
+            }
+        }
+    }
+
+    /**
+     * Return the number of bins for a feature
+     * @param feature - a feature index
+     * @return the number of bins
+     */
+    int numBins(int feature) {
+        return edges[feature].length + 1;
+    }
+
+    /**
+     * Return the bin a row falls into for a feature
+     * @param feature - a feature index
+     * @param rowId - a row id
+     * @return the row's bin
+     */
+    int bin(int feature, int rowId) {
+        return codes[feature][rowId] & 0xFF;
+    }
+
+    /**
+     * Return the threshold value that separates bins 0 to bin from the bins above it
+     * @param feature - a feature index
+     * @param bin - a bin, less than numBins(feature) - 1
+     * @return the upper edge of the bin
+     */
+    double threshold(int feature, int bin) {
+        return edges[feature][bin];
+    }
+
+    /**
+     * Choose distinct bin edges at evenly spaced quantiles of the sorted values
+     */
+    private static double[] quantileEdges(double[] sorted, int numBins) {
+        double[] edges = new double[numBins - 1];
+        int numEdges = 0;
+
+        for (int k = 1; k < numBins && sorted.length > 0; ++k) {
+            double edge = sorted[(int) ((long) k * sorted.length / numBins)];
+
+            // Every bin must hold at least one value
+            if (edge > sorted[0] && (numEdges == 0 || edge > edges[numEdges - 1])) {
+                edges[numEdges++] = edge;
+            }
+        }
+        return Arrays.copyOf(edges, numEdges);
+    }
+
+    /**
+     * Return the number of edges less than or equal to the value
+     */
+    private static int binOf(double[] edges, double value) {
+        int low = 0;
+        int high = edges.length;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (edges[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
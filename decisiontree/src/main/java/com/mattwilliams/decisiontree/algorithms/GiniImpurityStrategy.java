@@ -2,28 +2,291 @@ package com.mattwilliams.decisiontree.algorithms;
 
 import com.mattwilliams.decisiontree.base.Matrix;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
- * Example of possible implementation of BestSplitStrategy that uses Gini impurity as
- * a best split measure for CART tree
+ * The GiniImpurityStrategy uses Gini impurity as a best split measure for CART trees.
+ * Like InformationGainStrategy it splits each feature at its median by default, or
+ * tries every distinct threshold in exhaustive mode.
  *
- * @author Matt Williams
+ * The impurity of a set of n rows with label counts c is 1 - sum(c^2) / n^2, so
+ * evaluating a split only needs label counts and their sums of squares. The sums are
+ * kept up to date as rows move from one side of a threshold to the other, so the
+ * sweep over a feature does no allocation and no logarithms.
  *
- * @// TODO: 9/30/17 Just a possible example
+ * @author Matt Williams
  */
 public class GiniImpurityStrategy implements BestSplitStrategy {
+
+    private int bestFeature;
+    private double featureValue;
+    private double bestGain;
+
+    /**
+     * Whether to try every distinct threshold instead of just the median
+     */
+    private boolean exhaustive;
+
+    /**
+     * Thresholds leaving fewer rows than this on either side are skipped
+     */
+    private int minSamplesLeaf = 1;
+
+    /**
+     * Creates a GiniImpurityStrategy that splits features at their median
+     */
+    public GiniImpurityStrategy() {
+        this(false);
+    }
+
+    /**
+     * Creates a GiniImpurityStrategy
+     * @param exhaustive - <code>true</code> to try every distinct threshold of each feature
+     */
+    public GiniImpurityStrategy(boolean exhaustive) {
+        this.exhaustive = exhaustive;
+    }
+
+    /**
+     * Returns whether every distinct threshold of each feature is tried
+     * @return <code>true</code> if exhaustive mode is on
+     */
     @Override
-    public void evaluateSplits(List<Integer> featureIndices, Matrix rows, String label1, String label2) {
-        throw new UnsupportedOperationException("Not Yet Implemented");
+    public boolean isExhaustive() {
+        return exhaustive;
+    }
+
+    /**
+     * Sets whether to try every distinct threshold of each feature instead of just the
+     * median. DecisionTreeBuilder grows trees on a presorted view in exhaustive mode, so
+     * each node's sweep is linear; other matrices have the features being evaluated
+     * sorted on every call.
+     * @param exhaustive - <code>true</code> to use exhaustive mode
+     */
+    public void setExhaustive(boolean exhaustive) {
+        this.exhaustive = exhaustive;
     }
+
+    /**
+     * Get the minimum number of rows on each side of a split
+     * @return the minimum number of rows per side
+     */
+    public int getMinSamplesLeaf() {
+        return minSamplesLeaf;
+    }
+
+    @Override
+    public void setMinSamplesLeaf(int minSamplesLeaf) {
+        this.minSamplesLeaf = minSamplesLeaf;
+    }
+
+    @Override
+    public BestSplitStrategy fork() {
+        GiniImpurityStrategy fork = new GiniImpurityStrategy(exhaustive);
+        fork.setMinSamplesLeaf(minSamplesLeaf);
+        return fork;
+    }
+
+    @Override
+    public void evaluateSplits(List<Integer> featureIndices, Matrix matrix) {
+
+        if (featureIndices.isEmpty()) {
+            this.bestFeature = -1;
+            this.featureValue = -1;
+            this.bestGain = 0;
+            System.err.println("Invalid feature array!");
+            return;
+        }
+
+        // No feature yet; the fallback is only worked out if no split gains anything
+        this.bestFeature = -1;
+
+        // Impurity before
+        int beforeRows = matrix.size();
+        int[] beforeCounts = matrix.labelCounts();
+        long beforeSquares = sumOfSquares(beforeCounts);
+
+        // Label counts left of the threshold, reused for every feature
+        int[] leftCounts = new int[beforeCounts.length];
+        double largestGain = 0;
+
+        if (exhaustive) {
+            // DecisionTreeBuilder passes presorted views; sort any other matrix here
+            Matrix sorted = matrix.isPresorted() ? matrix : matrix.presortedView(featureIndices);
+
+            for (int feature : featureIndices) {
+                largestGain = sweepFeature(sorted, feature, beforeCounts, leftCounts, beforeSquares, largestGain);
+            }
+            finish(featureIndices, matrix, largestGain);
+            return;
+        }
+
+        for (int feature : featureIndices) {
+
+            double value = matrix.median(feature);
+
+            // Count the rows on each side of the split rather than splitting the matrix
+            int leftRows = 0;
+            Arrays.fill(leftCounts, 0);
+
+            for (int i = 0; i < beforeRows; ++i) {
+
+                if (matrix.featureAt(i, feature) < value) {
+                    leftRows++;
+                    leftCounts[matrix.labelIdAt(i)]++;
+                }
+            }
+            int rightRows = beforeRows - leftRows;
+
+            if (tooSmall(leftRows) || tooSmall(rightRows)) {
+                continue;
+            }
+
+            long leftSquares = 0;
+            long rightSquares = 0;
+
+            for (int label = 0; label < leftCounts.length; ++label) {
+                long right = beforeCounts[label] - leftCounts[label];
+                leftSquares += (long) leftCounts[label] * leftCounts[label];
+                rightSquares += right * right;
+            }
+            double gain = gain(beforeRows, beforeSquares, leftRows, leftSquares, rightSquares);
+
+            // Update best feature/value
+            if (gain > largestGain) {
+                largestGain = gain;
+                this.bestFeature = feature;
+                this.featureValue = value;
+            }
+        }
+        finish(featureIndices, matrix, largestGain);
+    }
+
+    /**
+     * Record the gain of the best split, falling back to the first feature's median if
+     * no split gained anything
+     */
+    private void finish(List<Integer> featureIndices, Matrix matrix, double largestGain) {
+
+        if (this.bestFeature < 0) {
+            this.bestFeature = featureIndices.get(0);
+            this.featureValue = matrix.median(this.bestFeature);
+        }
+        this.bestGain = largestGain;
+    }
+
+    /**
+     * Try every distinct threshold of a feature. As each row moves from the right side of
+     * the threshold to the left, the sums of squared label counts on each side are updated
+     * in constant time.
+     * @param sorted - a presorted view
+     * @param feature - the feature to evaluate
+     * @param beforeCounts - number of rows in the view with each label
+     * @param leftCounts - space for the running label counts
+     * @param beforeSquares - sum of the squared label counts of the view
+     * @param largestGain - the largest gain found so far
+     * @return the largest gain found so far, including this feature
+     */
+    private double sweepFeature(Matrix sorted, int feature, int[] beforeCounts, int[] leftCounts,
+                                long beforeSquares, double largestGain) {
+        int beforeRows = sorted.size();
+        long leftSquares = 0;
+        long rightSquares = beforeSquares;
+        Arrays.fill(leftCounts, 0);
+
+        for (int k = 0; k < beforeRows - 1; ++k) {
+
+            // (c + 1)^2 - c^2 = 2c + 1 and (r - 1)^2 - r^2 = 1 - 2r
+            int label = sorted.sortedLabelIdAt(feature, k);
+            int right = beforeCounts[label] - leftCounts[label];
+            leftSquares += 2L * leftCounts[label] + 1;
+            rightSquares += 1 - 2L * right;
+            leftCounts[label]++;
+
+            if (beforeRows - k - 1 < minSamplesLeaf) {
+                break;
+            }
+            double value = sorted.sortedFeatureAt(feature, k);
+            double next = sorted.sortedFeatureAt(feature, k + 1);
+
+            // Only cut between distinct values
+            if (value == next || k + 1 < minSamplesLeaf) {
+                continue;
+            }
+            double gain = gain(beforeRows, beforeSquares, k + 1, leftSquares, rightSquares);
+
+            if (gain > largestGain) {
+                largestGain = gain;
+                this.bestFeature = feature;
+
+                // Cut halfway between the values, unless they're too close to have a midpoint
+                double middle = (value + next) / 2.0;
+                this.featureValue = middle > value ? middle : next;
+            }
+        }
+        return largestGain;
+    }
+
+    /**
+     * Return whether a side of a split has too few rows. An empty side is allowed, since
+     * it becomes a leaf with its parent's label.
+     */
+    private boolean tooSmall(int rows) {
+        return rows > 0 && rows < minSamplesLeaf;
+    }
+
     @Override
     public int bestFeature() {
-        throw new UnsupportedOperationException("Not Yet Implemented");
+        return this.bestFeature;
     }
 
     @Override
     public double featureValue() {
-        throw new UnsupportedOperationException("Not Yet Implemented");
+        return this.featureValue;
+    }
+
+    @Override
+    public double bestGain() {
+        return this.bestGain;
+    }
+
+    /**
+     * Calculate the decrease in Gini impurity from splitting a set of rows. With n rows
+     * split into l and r rows, the impurity before is 1 - S/n^2 and the weighted impurity
+     * after is (l/n)(1 - L/l^2) + (r/n)(1 - R/r^2), where S, L and R are the sums of
+     * squared label counts.
+     * @param total - number of rows before the split
+     * @param squares - sum of squared label counts before the split
+     * @param leftRows - number of rows left of the split
+     * @param leftSquares - sum of squared label counts left of the split
+     * @param rightSquares - sum of squared label counts right of the split
+     * @return the decrease in impurity
+     */
+    static double gain(int total, long squares, int leftRows, long leftSquares, long rightSquares) {
+        int rightRows = total - leftRows;
+        double after = 0;
+
+        if (leftRows > 0) {
+            after += ((double) leftSquares) / leftRows;
+        }
+        if (rightRows > 0) {
+            after += ((double) rightSquares) / rightRows;
+        }
+        return (after - ((double) squares) / total) / total;
+    }
+
+    /**
+     * Sum the squares of label counts
+     * @param counts - number of rows with each label
+     * @return the sum of the squared counts
+     */
+    static long sumOfSquares(int[] counts) {
+        long sum = 0;
+
+        for (int count : counts) {
+            sum += (long) count * count;
+        }
+        return sum;
     }
 }
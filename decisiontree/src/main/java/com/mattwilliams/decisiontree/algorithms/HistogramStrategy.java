@@ -0,0 +1,193 @@
+package com.mattwilliams.decisiontree.algorithms;
+
+import com.mattwilliams.decisiontree.base.Matrix;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The HistogramStrategy uses the information gain metric, but instead of trying
+ * each feature's median it quantizes every feature into a fixed number of bins once
+ * per training run. At each node it counts the labels in each bin in a single pass
+ * and tries every bin edge as a threshold, so evaluating a feature is linear in the
+ * number of rows and needs no sorting.
+ *
+ * @author Matt Williams
+ */
+public class HistogramStrategy implements BestSplitStrategy {
+
+    /**
+     * Default number of bins per feature
+     */
+    public static final int DEFAULT_BINS = 256;
+
+    private final int numBins;
+
+    private FeatureBins bins;
+
+    /**
+     * Number of rows in each bin, reused between features
+     */
+    private final int[] binRows;
+
+    /**
+     * Number of rows with each label in each bin (indexed by bin * number of labels + label id),
+     * reused between features
+     */
+    private int[] binLabels = new int[0];
+
+    /**
+     * Thresholds leaving fewer rows than this on either side are skipped
+     */
+    private int minSamplesLeaf = 1;
+
+    private int bestFeature;
+    private double featureValue;
+    private double bestGain;
+
+    /**
+     * Creates a HistogramStrategy with the default number of bins
+     */
+    public HistogramStrategy() {
+        this(DEFAULT_BINS);
+    }
+
+    /**
+     * Creates a HistogramStrategy
+     * @param numBins - the maximum number of bins per feature (2 - 256)
+     */
+    public HistogramStrategy(int numBins) {
+
+        if (numBins < 2 || numBins > FeatureBins.MAX_BINS) {
+            throw new IllegalArgumentException("Number of bins must be between 2 and " + FeatureBins.MAX_BINS);
+        }
+        this.numBins = numBins;
+        this.binRows = new int[numBins];
+    }
+
+    @Override
+    public void prepare(Matrix matrix) {
+        this.bins = new FeatureBins(matrix, numBins);
+    }
+
+    @Override
+    public BestSplitStrategy fork() {
+        // Bins are read-only once prepared, so forks share them
+        HistogramStrategy fork = new HistogramStrategy(numBins);
+        fork.bins = bins;
+        fork.minSamplesLeaf = minSamplesLeaf;
+        return fork;
+    }
+
+    /**
+     * Get the minimum number of rows on each side of a split
+     * @return the minimum number of rows per side
+     */
+    public int getMinSamplesLeaf() {
+        return minSamplesLeaf;
+    }
+
+    @Override
+    public void setMinSamplesLeaf(int minSamplesLeaf) {
+        this.minSamplesLeaf = minSamplesLeaf;
+    }
+
+    @Override
+    public void evaluateSplits(List<Integer> featureIndices, Matrix matrix) {
+
+        if (featureIndices.isEmpty()) {
+            this.bestFeature = -1;
+            this.featureValue = -1;
+            this.bestGain = 0;
+            System.err.println("Invalid feature array!");
+            return;
+        }
+
+        if (bins == null) {
+            prepare(matrix);
+        }
+
+        // Entropy before
+        int beforeRows = matrix.size();
+        int[] beforeCounts = matrix.labelCounts();
+        double beforeEntropy = InformationGainStrategy.calculateEntropy(beforeCounts, beforeRows);
+
+        int numLabels = beforeCounts.length;
+        int[] leftCounts = new int[numLabels];
+
+        if (binLabels.length < numBins * numLabels) {
+            binLabels = new int[numBins * numLabels];
+        }
+
+        double largestGain = 0;
+        boolean found = false;
+
+        for (int feature : featureIndices) {
+
+            int featureBins = bins.numBins(feature);
+            Arrays.fill(binRows, 0, featureBins, 0);
+            Arrays.fill(binLabels, 0, featureBins * numLabels, 0);
+
+            // Build the histogram for this feature
+            for (int i = 0; i < beforeRows; ++i) {
+                int bin = bins.bin(feature, matrix.rowId(i));
+                binRows[bin]++;
+                binLabels[bin * numLabels + matrix.labelIdAt(i)]++;
+            }
+
+            // Try the upper edge of each bin as a threshold
+            int leftRows = 0;
+            Arrays.fill(leftCounts, 0);
+
+            for (int bin = 0; bin < featureBins - 1; ++bin) {
+                leftRows += binRows[bin];
+
+                for (int label = 0; label < numLabels; ++label) {
+                    leftCounts[label] += binLabels[bin * numLabels + label];
+                }
+                int rightRows = beforeRows - leftRows;
+
+                if (rightRows < minSamplesLeaf) {
+                    break;
+                }
+
+                if (leftRows == 0 || leftRows < minSamplesLeaf) {
+                    continue;
+                }
+                double weightLeft = ((double) leftRows) / beforeRows;
+                double weightRight = ((double) rightRows) / beforeRows;
+                double entropyLeft = weightLeft * InformationGainStrategy.calculateEntropy(leftCounts, leftRows);
+                double entropyRight = weightRight * InformationGainStrategy.calculateEntropy(beforeCounts, leftCounts, rightRows);
+                double gain = beforeEntropy - entropyLeft - entropyRight;
+
+                if (gain > largestGain) {
+                    largestGain = gain;
+                    found = true;
+                    this.bestFeature = feature;
+                    this.featureValue = bins.threshold(feature, bin);
+                }
+            }
+        }
+
+        if (!found) {
+            this.bestFeature = featureIndices.get(0);
+            this.featureValue = matrix.median(this.bestFeature);
+        }
+        this.bestGain = largestGain;
+    }
+
+    @Override
+    public int bestFeature() {
+        return this.bestFeature;
+    }
+
+    @Override
+    public double featureValue() {
+        return this.featureValue;
+    }
+
+    @Override
+    public double bestGain() {
+        return this.bestGain;
+    }
+}
@@ -1,64 +1,291 @@
 package com.mattwilliams.decisiontree.algorithms;
 
 import com.mattwilliams.decisiontree.base.Matrix;
-import com.mattwilliams.decisiontree.base.Row;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * The InformationGainStrategy uses the entropy/information gain algorithm
- * to evaluate splits
+ * to evaluate splits. By default each feature is split at its median. In exhaustive
+ * mode every distinct value of each feature is tried as a threshold, in a single
+ * sweep over the feature's sorted values.
+ *
+ * findBestSplit keeps no state between calls, so one strategy can be shared by threads
+ * as long as its settings don't change.
  *
  * @author Matt Williams
  */
 public class InformationGainStrategy implements BestSplitStrategy {
 
+    /**
+     * Placeholder for the best split until a split gains something
+     */
+    private static final SplitCandidate NO_SPLIT = new SplitCandidate(-1, 0, 0);
+
     private int bestFeature;
     private double featureValue;
 
+    /**
+     * Whether to try every distinct threshold instead of just the median
+     */
+    private boolean exhaustive;
+
+    /**
+     * Nodes with more rows than this evaluate their features in parallel
+     */
+    private int parallelThreshold = Integer.MAX_VALUE;
+
+    /**
+     * Thresholds leaving fewer rows than this on either side are skipped
+     */
+    private int minSamplesLeaf = 1;
+
+    /**
+     * Creates an InformationGainStrategy that splits features at their median
+     */
+    public InformationGainStrategy() {
+        this(false);
+    }
+
+    /**
+     * Creates an InformationGainStrategy
+     * @param exhaustive - <code>true</code> to try every distinct threshold of each feature
+     */
+    public InformationGainStrategy(boolean exhaustive) {
+        this.exhaustive = exhaustive;
+    }
+
+    /**
+     * Returns whether every distinct threshold of each feature is tried
+     * @return <code>true</code> if exhaustive mode is on
+     */
     @Override
-    public void evaluateSplits(List<Integer> featureIndices, Matrix matrix, String label1, String label2) {
+    public boolean isExhaustive() {
+        return exhaustive;
+    }
+
+    /**
+     * Sets whether to try every distinct threshold of each feature instead of just the
+     * median. DecisionTreeBuilder grows trees on a presorted view in exhaustive mode, so
+     * each node's sweep is linear; other matrices have the features being evaluated
+     * sorted on every call.
+     * @param exhaustive - <code>true</code> to use exhaustive mode
+     */
+    public void setExhaustive(boolean exhaustive) {
+        this.exhaustive = exhaustive;
+    }
+
+    /**
+     * Get the number of rows above which features are evaluated in parallel
+     * @return the parallel threshold
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Set the number of rows above which findBestSplit evaluates features in parallel, on
+     * the fork-join pool it is called from or the common pool. The best split is the same
+     * either way. The default, Integer.MAX_VALUE, always evaluates features one at a time.
+     * @param parallelThreshold - the parallel threshold, in rows
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Get the minimum number of rows on each side of a split
+     * @return the minimum number of rows per side
+     */
+    public int getMinSamplesLeaf() {
+        return minSamplesLeaf;
+    }
+
+    @Override
+    public void setMinSamplesLeaf(int minSamplesLeaf) {
+        this.minSamplesLeaf = minSamplesLeaf;
+    }
+
+    @Override
+    public BestSplitStrategy fork() {
+        InformationGainStrategy fork = new InformationGainStrategy(exhaustive);
+        fork.setParallelThreshold(parallelThreshold);
+        fork.setMinSamplesLeaf(minSamplesLeaf);
+        return fork;
+    }
+
+    @Override
+    public void evaluateSplits(List<Integer> featureIndices, Matrix matrix) {
+        SplitCandidate best = findBestSplit(featureIndices, matrix);
+        this.bestFeature = best.getFeature();
+        this.featureValue = best.getValue();
+    }
+
+    @Override
+    public SplitCandidate findBestSplit(List<Integer> featureIndices, Matrix matrix) {
 
         if (featureIndices.isEmpty()) {
-            this.bestFeature = -1;
-            this.featureValue = -1;
             System.err.println("Invalid feature array!");
-            return;
+            return new SplitCandidate(-1, -1, 0);
         }
 
-        this.bestFeature = featureIndices.get(0);
-        this.featureValue = matrix.median(this.bestFeature);
+        SplitCandidate best = NO_SPLIT;
 
         // Entropy before
-        double beforeEntropy = calculateEntropy(matrix, label1, label2);
         int beforeRows = matrix.size();
+        int[] beforeCounts = matrix.labelCounts();
+        double beforeEntropy = calculateEntropy(beforeCounts, beforeRows);
 
-        double largestGain = 0;
+        // DecisionTreeBuilder passes presorted views; sort any other matrix here
+        Matrix rows = exhaustive && !matrix.isPresorted() ? matrix.presortedView(featureIndices) : matrix;
+
+        if (featureIndices.size() > 1 && beforeRows > parallelThreshold) {
+            // Candidates come back in feature order, so the best is the same as sequentially
+            SplitCandidate[] candidates = featureIndices.parallelStream()
+                    .map(feature -> evaluateFeature(rows, feature, beforeCounts, new int[beforeCounts.length], beforeEntropy))
+                    .toArray(SplitCandidate[]::new);
+
+            for (SplitCandidate candidate : candidates) {
+
+                if (candidate != null && candidate.isBetterThan(best)) {
+                    best = candidate;
+                }
+            }
+            return orFallback(best, featureIndices, matrix);
+        }
+
+        // Label counts left of the threshold, reused for every feature
+        int[] leftCounts = new int[beforeCounts.length];
 
         for (int feature : featureIndices) {
+            SplitCandidate candidate = evaluateFeature(rows, feature, beforeCounts, leftCounts, beforeEntropy);
 
-            double value = matrix.median(feature);
+            if (candidate != null && candidate.isBetterThan(best)) {
+                best = candidate;
+            }
+        }
+        return orFallback(best, featureIndices, matrix);
+    }
 
-            ArrayList<Matrix> splits = matrix.split(feature, value);
-            Matrix left = splits.get(0);
-            Matrix right = splits.get(1);
+    /**
+     * Return the best split, or the first feature's median if no split gained anything
+     */
+    private static SplitCandidate orFallback(SplitCandidate best, List<Integer> featureIndices, Matrix matrix) {
 
-            // Calculate information gain
-            double weightLeft = ((double)left.size()) / beforeRows;
-            double weightRight = ((double)right.size()) / beforeRows;
-            double entropyLeft = weightLeft * calculateEntropy(left, label1, label2);
-            double entropyRight = weightRight * calculateEntropy(right, label1, label2);
-            double afterEntropy = entropyLeft + entropyRight;
-            double gain = beforeEntropy - afterEntropy;
+        if (best != NO_SPLIT) {
+            return best;
+        }
+        int firstFeature = featureIndices.get(0);
+        return new SplitCandidate(firstFeature, matrix.median(firstFeature), 0);
+    }
+
+    /**
+     * Find the best split of one feature
+     * @param matrix - the rows to split, presorted in exhaustive mode
+     * @param feature - the feature to evaluate
+     * @param beforeCounts - number of rows with each label
+     * @param leftCounts - space for label counts
+     * @param beforeEntropy - entropy of the rows
+     * @return the best split of the feature, or null if no threshold was tried
+     */
+    private SplitCandidate evaluateFeature(Matrix matrix, int feature, int[] beforeCounts, int[] leftCounts,
+                                           double beforeEntropy) {
+
+        if (exhaustive) {
+            return sweepFeature(matrix, feature, beforeCounts, leftCounts, beforeEntropy);
+        }
+
+        double value = matrix.median(feature);
+        int beforeRows = matrix.size();
+
+        // Count the rows on each side of the split rather than splitting the matrix
+        int leftRows = 0;
+        Arrays.fill(leftCounts, 0);
+
+        for (int i = 0; i < beforeRows; ++i) {
+
+            if (matrix.featureAt(i, feature) < value) {
+                leftRows++;
+                leftCounts[matrix.labelIdAt(i)]++;
+            }
+        }
+        int rightRows = beforeRows - leftRows;
+
+        if (tooSmall(leftRows) || tooSmall(rightRows)) {
+            return null;
+        }
+
+        // Calculate information gain
+        double weightLeft = ((double)leftRows) / beforeRows;
+        double weightRight = ((double)rightRows) / beforeRows;
+        double entropyLeft = weightLeft * calculateEntropy(leftCounts, leftRows);
+        double entropyRight = weightRight * calculateEntropy(beforeCounts, leftCounts, rightRows);
+        double afterEntropy = entropyLeft + entropyRight;
+        return new SplitCandidate(feature, value, beforeEntropy - afterEntropy);
+    }
+
+    /**
+     * Try every distinct threshold of a feature, keeping running counts of the rows left
+     * of the threshold as it moves up through the sorted values
+     * @param sorted - a presorted view
+     * @param feature - the feature to evaluate
+     * @param beforeCounts - number of rows in the view with each label
+     * @param leftCounts - space for the running label counts
+     * @param beforeEntropy - entropy of the view
+     * @return the best threshold of the feature, or null if it has only one distinct value
+     */
+    private SplitCandidate sweepFeature(Matrix sorted, int feature, int[] beforeCounts, int[] leftCounts,
+                                        double beforeEntropy) {
+        int beforeRows = sorted.size();
+        Arrays.fill(leftCounts, 0);
+
+        boolean found = false;
+        double largestGain = 0;
+        double bestValue = 0;
 
-            // Update best feature/value
-            if (gain > largestGain) {
+        for (int k = 0; k < beforeRows - 1; ++k) {
+
+            leftCounts[sorted.sortedLabelIdAt(feature, k)]++;
+            double value = sorted.sortedFeatureAt(feature, k);
+            double next = sorted.sortedFeatureAt(feature, k + 1);
+
+            int leftRows = k + 1;
+            int rightRows = beforeRows - leftRows;
+
+            if (rightRows < minSamplesLeaf) {
+                break;
+            }
+
+            // Only cut between distinct values
+            if (value == next || leftRows < minSamplesLeaf) {
+                continue;
+            }
+
+            double weightLeft = ((double)leftRows) / beforeRows;
+            double weightRight = ((double)rightRows) / beforeRows;
+            double entropyLeft = weightLeft * calculateEntropy(leftCounts, leftRows);
+            double entropyRight = weightRight * calculateEntropy(beforeCounts, leftCounts, rightRows);
+            double gain = beforeEntropy - entropyLeft - entropyRight;
+
+            if (!found || gain > largestGain) {
+                found = true;
                 largestGain = gain;
-                this.bestFeature = feature;
-                this.featureValue = value;
+
+                // Cut halfway between the values, unless they're too close to have a midpoint
+                double middle = (value + next) / 2.0;
+                bestValue = middle > value ? middle : next;
             }
         }
+        return found ? new SplitCandidate(feature, bestValue, largestGain) : null;
+    }
+
+    /**
+     * Return whether a side of a split has too few rows. An empty side is allowed, since
+     * it becomes a leaf with its parent's label.
+     */
+    private boolean tooSmall(int rows) {
+        return rows > 0 && rows < minSamplesLeaf;
     }
 
     @Override
@@ -70,23 +297,49 @@ public class InformationGainStrategy implements BestSplitStrategy {
         return this.featureValue;
     }
 
-    private static double calculateEntropy(Matrix matrix, String label1, String label2) {
+    /**
+     * Calculate the entropy of a set of rows
+     * @param counts - number of rows with each label
+     * @param total - total number of rows
+     * @return the entropy, or 0 for an empty set
+     */
+    static double calculateEntropy(int[] counts, int total) {
 
-        int total = matrix.size();
-        int numLabel1 = 0;
-        int numLabel2 = 0;
+        if (total == 0) {
+            return 0;
+        }
+        double entropy = 0;
 
-        for (Row row : matrix.rows()) {
+        for (int count : counts) {
+            entropy -= xLogX(((double) count) / total);
+        }
+        return entropy;
+    }
 
-            if (row.getLabel().equals(label1)) {
-                numLabel1++;
-            } else {
-                numLabel2++;
-            }
+    /**
+     * Calculate the entropy of the rows that remain after removing a subset
+     * @param counts - number of rows with each label
+     * @param removedCounts - number of rows with each label in the removed subset
+     * @param total - total number of rows remaining
+     * @return the entropy, or 0 for an empty set
+     */
+    static double calculateEntropy(int[] counts, int[] removedCounts, int total) {
+
+        if (total == 0) {
+            return 0;
+        }
+        double entropy = 0;
+
+        for (int label = 0; label < counts.length; ++label) {
+            entropy -= xLogX(((double) (counts[label] - removedCounts[label])) / total);
         }
-        double prob1 = ((double) numLabel1) / total;
-        double prob2 = ((double) numLabel2) / total;
+        return entropy;
+    }
 
-        return -1 * prob1 * Math.log(prob1) - prob2 * Math.log(prob2);
+    /**
+     * Returns x * ln(x), taking 0 * ln(0) to be 0
+     */
+    private static double xLogX(double x) {
+        return x == 0 ? 0 : x * Math.log(x);
     }
 }
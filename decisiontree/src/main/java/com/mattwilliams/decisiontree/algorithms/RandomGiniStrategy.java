@@ -0,0 +1,66 @@
+package com.mattwilliams.decisiontree.algorithms;
+
+import com.mattwilliams.decisiontree.base.Matrix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * RandomGiniStrategy scores splits by Gini impurity like GiniImpurityStrategy, but only
+ * evaluates a random subset of the available features at each node, for use in random
+ * forests. Give each tree its own seeded Random to make the feature subsets reproducible.
+ *
+ * @author Matt Williams
+ */
+public class RandomGiniStrategy extends GiniImpurityStrategy {
+
+    /**
+     * Source of randomness for choosing feature subsets
+     */
+    private final Random random;
+
+    /**
+     * Creates a RandomGiniStrategy that splits features at their median
+     * @param random - source of randomness for choosing feature subsets
+     */
+    public RandomGiniStrategy(Random random) {
+        this(false, random);
+    }
+
+    /**
+     * Creates a RandomGiniStrategy
+     * @param exhaustive - <code>true</code> to try every distinct threshold of each feature
+     * @param random - source of randomness for choosing feature subsets
+     */
+    public RandomGiniStrategy(boolean exhaustive, Random random) {
+        super(exhaustive);
+        this.random = random;
+    }
+
+    @Override
+    public BestSplitStrategy fork() {
+        RandomGiniStrategy fork = new RandomGiniStrategy(isExhaustive(), new Random(random.nextLong()));
+        fork.setMinSamplesLeaf(getMinSamplesLeaf());
+        return fork;
+    }
+
+    @Override
+    public void evaluateSplits(List<Integer> featureIndices, Matrix matrix) {
+        super.evaluateSplits(getRandomFeatureSubset(featureIndices), matrix);
+    }
+
+    /**
+     * Returns a random subset of the original feature list (subset length is the square
+     * root of the original list size).
+     * @param originalFeatures - a set of features (indices)
+     * @return a random subset of features with size == sqrt(originalFeatures.size())
+     */
+    private List<Integer> getRandomFeatureSubset(List<Integer> originalFeatures) {
+        List<Integer> features = new ArrayList<>(originalFeatures);
+        int numFeatures = (int) Math.sqrt(originalFeatures.size());
+        Collections.shuffle(features, random);
+        return features.subList(0, numFeatures);
+    }
+}
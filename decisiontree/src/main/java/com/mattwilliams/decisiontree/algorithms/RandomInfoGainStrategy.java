@@ -5,18 +5,70 @@ import com.mattwilliams.decisiontree.base.Matrix;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 /**
  * RandomInfoGainStrategy uses the same information gain metric as InformationGainStrategy
  * to determine best split, however it only evaluates a subset of the available features
- * for use in random forest implementation
+ * for use in random forest implementation. Give each tree its own seeded Random to make
+ * the feature subsets reproducible.
+ *
+ * findBestSplit is thread-safe, but threads sharing a strategy share its Random, so
+ * which subsets they get depends on timing. Give each thread a fork() instead when
+ * results need to be reproducible.
  */
 public class RandomInfoGainStrategy extends InformationGainStrategy {
 
+    /**
+     * Source of randomness for choosing feature subsets
+     */
+    private final Random random;
+
+    /**
+     * Creates a RandomInfoGainStrategy that splits features at their median
+     */
+    public RandomInfoGainStrategy() {
+        this(false, new Random());
+    }
+
+    /**
+     * Creates a RandomInfoGainStrategy
+     * @param exhaustive - <code>true</code> to try every distinct threshold of each feature
+     */
+    public RandomInfoGainStrategy(boolean exhaustive) {
+        this(exhaustive, new Random());
+    }
+
+    /**
+     * Creates a RandomInfoGainStrategy that splits features at their median
+     * @param random - source of randomness for choosing feature subsets
+     */
+    public RandomInfoGainStrategy(Random random) {
+        this(false, random);
+    }
+
+    /**
+     * Creates a RandomInfoGainStrategy
+     * @param exhaustive - <code>true</code> to try every distinct threshold of each feature
+     * @param random - source of randomness for choosing feature subsets
+     */
+    public RandomInfoGainStrategy(boolean exhaustive, Random random) {
+        super(exhaustive);
+        this.random = random;
+    }
+
+    @Override
+    public BestSplitStrategy fork() {
+        RandomInfoGainStrategy fork = new RandomInfoGainStrategy(isExhaustive(), new Random(random.nextLong()));
+        fork.setParallelThreshold(getParallelThreshold());
+        fork.setMinSamplesLeaf(getMinSamplesLeaf());
+        return fork;
+    }
+
     @Override
-    public void evaluateSplits(List<Integer> featureIndices, Matrix matrix, String label1, String label2) {
+    public SplitCandidate findBestSplit(List<Integer> featureIndices, Matrix matrix) {
         List<Integer> randomFeatures = getRandomFeatureSubset(featureIndices);
-        super.evaluateSplits(randomFeatures, matrix, label1, label2);
+        return super.findBestSplit(randomFeatures, matrix);
     }
 
     /**
@@ -28,7 +80,7 @@ public class RandomInfoGainStrategy extends InformationGainStrategy {
     private List<Integer> getRandomFeatureSubset(List<Integer> originalFeatures) {
         List<Integer> features = new ArrayList<>(originalFeatures);
         int numFeatures = (int) Math.sqrt(originalFeatures.size());
-        Collections.shuffle(features);
+        Collections.shuffle(features, random);
         return features.subList(0, numFeatures);
     }
 }
@@ -0,0 +1,67 @@
+package com.mattwilliams.decisiontree.algorithms;
+
+/**
+ * A SplitCandidate is the result of evaluating splits: the feature to split on, the
+ * threshold value (rows with a smaller value go left) and the gain of the split.
+ * Candidates are immutable, so they can be passed between threads freely.
+ *
+ * @author Matt Williams
+ */
+public final class SplitCandidate {
+
+    private final int feature;
+    private final double value;
+    private final double gain;
+
+    /**
+     * Creates a SplitCandidate
+     * @param feature - the feature to split on
+     * @param value - the threshold value
+     * @param gain - the gain of the split, or Double.NaN if unknown
+     */
+    public SplitCandidate(int feature, double value, double gain) {
+        this.feature = feature;
+        this.value = value;
+        this.gain = gain;
+    }
+
+    /**
+     * Get the index of the feature to split on
+     * @return the feature index
+     */
+    public int getFeature() {
+        return feature;
+    }
+
+    /**
+     * Get the threshold value to split at
+     * @return the threshold value
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Get the gain of the split, as measured by the strategy that found it
+     * @return the gain, or Double.NaN if the strategy doesn't report it
+     */
+    public double getGain() {
+        return gain;
+    }
+
+    /**
+     * Returns whether this candidate has a strictly larger gain than another. Keeping the
+     * first of several equally good candidates makes the choice independent of how the
+     * candidates were evaluated.
+     * @param other - another candidate, or null
+     * @return <code>true</code> if other is null or this candidate's gain is larger
+     */
+    public boolean isBetterThan(SplitCandidate other) {
+        return other == null || gain > other.gain;
+    }
+
+    @Override
+    public String toString() {
+        return "SplitCandidate{feature=" + feature + ", value=" + value + ", gain=" + gain + "}";
+    }
+}
@@ -0,0 +1,40 @@
+package com.mattwilliams.decisiontree.algorithms;
+
+import java.util.Random;
+
+/**
+ * The measure random forests use to choose splits. Each criterion creates the strategy
+ * that evaluates a random subset of features at each node with that measure.
+ *
+ * @author Matt Williams
+ */
+public enum SplitCriterion {
+
+    /**
+     * Information gain (see RandomInfoGainStrategy)
+     */
+    ENTROPY {
+        @Override
+        public BestSplitStrategy newStrategy(boolean exhaustive, Random random) {
+            return new RandomInfoGainStrategy(exhaustive, random);
+        }
+    },
+
+    /**
+     * Decrease in Gini impurity (see RandomGiniStrategy)
+     */
+    GINI {
+        @Override
+        public BestSplitStrategy newStrategy(boolean exhaustive, Random random) {
+            return new RandomGiniStrategy(exhaustive, random);
+        }
+    };
+
+    /**
+     * Create the split strategy for one tree
+     * @param exhaustive - <code>true</code> to try every distinct threshold of each feature
+     * @param random - the tree's random number generator
+     * @return a new split strategy
+     */
+    public abstract BestSplitStrategy newStrategy(boolean exhaustive, Random random);
+}
@@ -0,0 +1,283 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A CachingPredictor remembers the predictions of another predictor, keyed by the exact
+ * feature values of each row, so rows that are scored again don't run the model again.
+ *
+ * The cache holds a bounded number of rows and evicts the least recently used. It is
+ * split into segments, each locked separately, so threads mostly don't contend. Lookups
+ * use a key object reused by each thread, so a cache hit doesn't allocate.
+ *
+ * Every cached prediction records the model version it was made with (see
+ * Predictor.modelVersion). When the underlying model changes, the cache is cleared and
+ * older predictions are never returned.
+ *
+ * @author Matt Williams
+ */
+public class CachingPredictor implements Predictor {
+
+    /**
+     * Default number of segments
+     */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    private static final ThreadLocal<FeatureKey> PROBES = ThreadLocal.withInitial(FeatureKey::new);
+
+    private final Predictor predictor;
+
+    private final Segment[] segments;
+
+    private final int segmentMask;
+
+    /**
+     * Model version the cache was last cleared for
+     */
+    private volatile long version;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a CachingPredictor with the default number of segments
+     * @param predictor - the predictor whose predictions are cached
+     * @param capacity - the maximum number of rows to cache
+     */
+    public CachingPredictor(Predictor predictor, int capacity) {
+        this(predictor, capacity, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Creates a CachingPredictor
+     * @param predictor - the predictor whose predictions are cached
+     * @param capacity - the maximum number of rows to cache
+     * @param segments - the number of separately locked segments, rounded up to a power of 2
+     */
+    public CachingPredictor(Predictor predictor, int capacity, int segments) {
+
+        if (capacity < 1 || segments < 1) {
+            throw new IllegalArgumentException("Capacity and number of segments must be at least 1");
+        }
+        int numSegments = Integer.highestOneBit(Math.min(segments, capacity) * 2 - 1);
+        this.predictor = predictor;
+        this.segments = new Segment[numSegments];
+        this.segmentMask = numSegments - 1;
+        this.version = predictor.modelVersion();
+
+        for (int i = 0; i < numSegments; ++i) {
+            // Spread the capacity over the segments
+            this.segments[i] = new Segment(capacity / numSegments + (i < capacity % numSegments ? 1 : 0));
+        }
+    }
+
+    @Override
+    public String predict(Row row) {
+        long currentVersion = predictor.modelVersion();
+
+        if (currentVersion != version) {
+            version = currentVersion;
+            clear();
+        }
+
+        FeatureKey probe = PROBES.get();
+        probe.set(row);
+        Segment segment = segments[spread(probe.hash) & segmentMask];
+        Prediction cached;
+
+        synchronized (segment) {
+            cached = segment.get(probe);
+        }
+
+        if (cached != null && cached.version == currentVersion) {
+            hits.increment();
+            return cached.label;
+        }
+        misses.increment();
+
+        String label = predictor.predict(row);
+        Prediction prediction = new Prediction(label, currentVersion);
+        FeatureKey key = probe.copy();
+
+        synchronized (segment) {
+            segment.put(key, prediction);
+        }
+        return label;
+    }
+
+    @Override
+    public long modelVersion() {
+        return predictor.modelVersion();
+    }
+
+    /**
+     * Remove every cached prediction
+     */
+    public void clear() {
+
+        for (Segment segment : segments) {
+
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Return the number of cached predictions
+     * @return the number of rows in the cache
+     */
+    public int size() {
+        int size = 0;
+
+        for (Segment segment : segments) {
+
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Return the number of predictions answered from the cache
+     * @return the number of hits
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Return the number of predictions that ran the underlying predictor
+     * @return the number of misses
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Return the number of predictions evicted to make room for others
+     * @return the number of evictions
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the predictor whose predictions are cached
+     * @return the underlying predictor
+     */
+    public Predictor getPredictor() {
+        return predictor;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A cached label and the model version that predicted it
+     */
+    private static final class Prediction {
+
+        final String label;
+        final long version;
+
+        Prediction(String label, long version) {
+            this.label = label;
+            this.version = version;
+        }
+    }
+
+    /**
+     * A least recently used cache of predictions, guarded by its own lock
+     */
+    private final class Segment extends LinkedHashMap<FeatureKey, Prediction> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FeatureKey, Prediction> eldest) {
+
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A row's feature values, compared bit for bit. Each thread reuses one key to look
+     * rows up; keys stored in the cache are copies.
+     */
+    private static final class FeatureKey {
+
+        private double[] values = new double[8];
+        private int length;
+        private int hash;
+
+        void set(Row row) {
+            length = row.numFeatures();
+
+            if (values.length < length) {
+                values = new double[Math.max(length, values.length * 2)];
+            }
+            int h = 1;
+
+            for (int i = 0; i < length; ++i) {
+                values[i] = row.featureAt(i);
+                long bits = Double.doubleToLongBits(values[i]);
+                h = 31 * h + (int) (bits ^ (bits >>> 32));
+            }
+            hash = h;
+        }
+
+        FeatureKey copy() {
+            FeatureKey key = new FeatureKey();
+            key.values = Arrays.copyOf(values, length);
+            key.length = length;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) {
+                return true;
+            } else if (!(o instanceof FeatureKey)) {
+                return false;
+            }
+            FeatureKey other = (FeatureKey) o;
+
+            if (hash != other.hash || length != other.length) {
+                return false;
+            }
+
+            for (int i = 0; i < length; ++i) {
+
+                if (Double.doubleToLongBits(values[i]) != Double.doubleToLongBits(other.values[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
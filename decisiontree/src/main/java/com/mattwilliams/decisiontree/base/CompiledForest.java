@@ -0,0 +1,281 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A CompiledForest is a random forest whose trees have been compiled into flat arrays
+ * (see CompiledTree). It predicts the same labels as the RandomForest it was compiled
+ * from, but faster. Compiled forests are immutable and can be shared between threads.
+ *
+ * Probabilities are the fraction of trees voting for each label.
+ *
+ * Batch predictions run tree-major over blocks of rows: each tree predicts a whole block
+ * before the next tree starts, so a tree's arrays stay in cache while they are used.
+ *
+ * @author Matt Williams
+ */
+public class CompiledForest implements ProbabilityPredictor {
+
+    /**
+     * Number of rows predicted together by each tree in batch predictions
+     */
+    static final int BLOCK_SIZE = 256;
+
+    private final CompiledTree[] trees;
+
+    private final LabelDictionary labelDictionary;
+
+    /**
+     * Whether per-row predictions stop counting votes once the winner is decided
+     */
+    private final boolean earlyExit;
+
+    /**
+     * Number of features batch predictions need each row to have
+     */
+    private final int numFeaturesUsed;
+
+    /**
+     * Creates a CompiledForest
+     * @param trees - trees compiled with the given label dictionary
+     * @param labelDictionary - dictionary for the label ids of the trees' leaves
+     */
+    public CompiledForest(List<CompiledTree> trees, LabelDictionary labelDictionary) {
+        this(trees, labelDictionary, false);
+    }
+
+    /**
+     * Creates a CompiledForest
+     * @param trees - trees compiled with the given label dictionary
+     * @param labelDictionary - dictionary for the label ids of the trees' leaves
+     * @param earlyExit - <code>true</code> to stop counting a row's votes once no other
+     *                  label can catch up with the leading label (see RandomForest.setEarlyExit)
+     */
+    public CompiledForest(List<CompiledTree> trees, LabelDictionary labelDictionary, boolean earlyExit) {
+        this.trees = trees.toArray(new CompiledTree[trees.size()]);
+        this.labelDictionary = labelDictionary;
+        this.earlyExit = earlyExit;
+
+        int used = 0;
+
+        for (CompiledTree tree : this.trees) {
+            used = Math.max(used, tree.numFeaturesUsed());
+        }
+        this.numFeaturesUsed = used;
+    }
+
+    @Override
+    public String predict(Row row) {
+        int bestLabel = predictLabelId(row);
+        return bestLabel < 0 ? "" : labelDictionary.label(bestLabel);
+    }
+
+    /**
+     * Predict the label id for the given row
+     * @param row - a row with features
+     * @return the id of the predicted label in this forest's label dictionary, or -1 if
+     *         the forest has no labels
+     */
+    public int predictLabelId(Row row) {
+
+        int numLabels = labelDictionary.size();
+        int[] votes = Votes.counters(numLabels);
+        int leader = -1;
+
+        for (int i = 0; i < trees.length; ++i) {
+            int label = trees[i].predictLabelId(row);
+            votes[label]++;
+
+            if (earlyExit) {
+
+                if (leader < 0 || votes[label] > votes[leader]) {
+                    leader = label;
+                }
+
+                if (Votes.decided(votes, numLabels, leader, trees.length - i - 1)) {
+                    break;
+                }
+            }
+        }
+        return Votes.winner(votes, numLabels);
+    }
+
+    @Override
+    public void predict(Matrix matrix, int from, int to, String[] labels) {
+        double[] values = new double[BLOCK_SIZE * matrix.numFeatures()];
+        int[] leaves = new int[BLOCK_SIZE];
+        int[] votes = new int[BLOCK_SIZE * labelDictionary.size()];
+        int[] labelIds = new int[BLOCK_SIZE];
+
+        for (int start = from; start < to; start += BLOCK_SIZE) {
+            int end = Math.min(start + BLOCK_SIZE, to);
+            predictBlock(matrix, start, end, values, leaves, votes, labelIds);
+
+            for (int i = start; i < end; ++i) {
+                int labelId = labelIds[i - start];
+                labels[i] = labelId < 0 ? "" : labelDictionary.label(labelId);
+            }
+        }
+    }
+
+    @Override
+    public void predictProba(Row row, double[] probabilities) {
+        int numLabels = labelDictionary.size();
+        Arrays.fill(probabilities, 0, numLabels, 0);
+
+        for (CompiledTree tree : trees) {
+            probabilities[tree.predictLabelId(row)]++;
+        }
+        toFractions(probabilities, 0, numLabels);
+    }
+
+    @Override
+    public void predictProba(Matrix matrix, int from, int to, double[] probabilities) {
+        int numLabels = labelDictionary.size();
+        double[] values = new double[BLOCK_SIZE * matrix.numFeatures()];
+        int[] leaves = new int[BLOCK_SIZE];
+        int[] votes = new int[BLOCK_SIZE * numLabels];
+
+        for (int start = from; start < to; start += BLOCK_SIZE) {
+            int end = Math.min(start + BLOCK_SIZE, to);
+            int blockVotes = (end - start) * numLabels;
+            countVotes(matrix, start, end, values, leaves, votes);
+
+            for (int k = 0; k < blockVotes; ++k) {
+                probabilities[start * numLabels + k] = votes[k];
+            }
+            toFractions(probabilities, start * numLabels, blockVotes);
+        }
+    }
+
+    /**
+     * Predict the label ids of all rows in a matrix
+     * @param matrix - rows with features
+     * @return the ids of the predicted labels in this forest's label dictionary, in row order
+     */
+    public int[] predictLabelIds(Matrix matrix) {
+        int[] labelIds = new int[matrix.size()];
+        predictLabelIds(matrix, 0, matrix.size(), labelIds);
+        return labelIds;
+    }
+
+    /**
+     * Predict the label ids of a block of rows in a matrix
+     * @param matrix - rows with features
+     * @param from - index of the first row to predict
+     * @param to - index after the last row to predict
+     * @param labelIds - array to store the label ids in; the id for row i goes in labelIds[i],
+     *                 or -1 if the forest has no labels
+     */
+    public void predictLabelIds(Matrix matrix, int from, int to, int[] labelIds) {
+        double[] values = new double[BLOCK_SIZE * matrix.numFeatures()];
+        int[] leaves = new int[BLOCK_SIZE];
+        int[] votes = new int[BLOCK_SIZE * labelDictionary.size()];
+        int[] block = new int[BLOCK_SIZE];
+
+        for (int start = from; start < to; start += BLOCK_SIZE) {
+            int end = Math.min(start + BLOCK_SIZE, to);
+            predictBlock(matrix, start, end, values, leaves, votes, block);
+            System.arraycopy(block, 0, labelIds, start, end - start);
+        }
+    }
+
+    /**
+     * Predict up to BLOCK_SIZE rows
+     * @param matrix - rows with features
+     * @param from - index of the first row to predict
+     * @param to - index after the last row to predict
+     * @param values - space for the block's features
+     * @param leaves - space for one tree's predictions
+     * @param votes - space for the votes of each row for each label
+     * @param labelIds - array to store the label ids in; the id for row i goes in labelIds[i - from]
+     */
+    private void predictBlock(Matrix matrix, int from, int to, double[] values, int[] leaves, int[] votes,
+                              int[] labelIds) {
+        int numLabels = labelDictionary.size();
+        int blockRows = to - from;
+        countVotes(matrix, from, to, values, leaves, votes);
+
+        for (int i = 0; i < blockRows; ++i) {
+            int bestLabel = -1;
+            int max = -1;
+
+            for (int label = 0; label < numLabels; ++label) {
+
+                if (votes[i * numLabels + label] > max) {
+                    bestLabel = label;
+                    max = votes[i * numLabels + label];
+                }
+            }
+            labelIds[i] = bestLabel;
+        }
+    }
+
+    /**
+     * Count the votes for up to BLOCK_SIZE rows, letting each tree predict every row
+     * before moving on to the next tree
+     * @param matrix - rows with features
+     * @param from - index of the first row to predict
+     * @param to - index after the last row to predict
+     * @param values - space for the block's features
+     * @param leaves - space for one tree's predictions
+     * @param votes - array to count the votes in; votes for label l of row i go in
+     *              votes[(i - from) * number of labels + l]
+     */
+    private void countVotes(Matrix matrix, int from, int to, double[] values, int[] leaves, int[] votes) {
+        int numFeatures = matrix.numFeatures();
+        int numLabels = labelDictionary.size();
+        int blockRows = to - from;
+
+        // Rows are copied side by side, so a missing feature would be read from the next row
+        if (numFeatures < numFeaturesUsed) {
+            throw new IllegalArgumentException("Expected at least " + numFeaturesUsed + " features, got " + numFeatures);
+        }
+        matrix.copyFeatures(from, to, values);
+        Arrays.fill(votes, 0, blockRows * numLabels, 0);
+
+        for (CompiledTree tree : trees) {
+            tree.predictLabelIds(values, numFeatures, blockRows, leaves);
+
+            for (int i = 0; i < blockRows; ++i) {
+                votes[i * numLabels + leaves[i]]++;
+            }
+        }
+    }
+
+    /**
+     * Turn vote counts into fractions of the number of trees
+     * @param votes - vote counts
+     * @param offset - index of the first count
+     * @param length - number of counts
+     */
+    private void toFractions(double[] votes, int offset, int length) {
+
+        if (trees.length == 0) {
+            return;
+        }
+        double scale = 1.0 / trees.length;
+
+        for (int k = offset; k < offset + length; ++k) {
+            votes[k] *= scale;
+        }
+    }
+
+    /**
+     * Return the number of trees in the forest
+     * @return the number of trees
+     */
+    public int numTrees() {
+        return trees.length;
+    }
+
+    /**
+     * Get the dictionary for the label ids of the trees' leaves
+     * @return the label dictionary
+     */
+    @Override
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+}
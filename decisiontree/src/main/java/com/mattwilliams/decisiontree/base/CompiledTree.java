@@ -0,0 +1,221 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A CompiledTree is a decision tree flattened into parallel primitive arrays for fast
+ * prediction. Nodes are numbered in breadth-first order from the root (node 0), so the
+ * top levels of the tree, which every prediction visits, sit next to each other in
+ * memory. Predicting walks the arrays in a loop instead of chasing pointers between
+ * TreeNode objects.
+ *
+ * A leaf has a feature index of -1 and holds the id of its label in the tree's label
+ * dictionary. Compiled trees are immutable and can be shared between threads.
+ *
+ * @author Matt Williams
+ */
+public class CompiledTree implements Predictor {
+
+    /**
+     * Feature tested by each node, or -1 for leaves
+     */
+    private final int[] features;
+
+    /**
+     * Threshold of each node; rows with a smaller value go left
+     */
+    private final double[] thresholds;
+
+    /**
+     * Index of each node's left child
+     */
+    private final int[] leftChildren;
+
+    /**
+     * Index of each node's right child
+     */
+    private final int[] rightChildren;
+
+    /**
+     * Label id of each leaf
+     */
+    private final int[] labelIds;
+
+    private final LabelDictionary labelDictionary;
+
+    private CompiledTree(int[] features, double[] thresholds, int[] leftChildren, int[] rightChildren,
+                         int[] labelIds, LabelDictionary labelDictionary) {
+        this.features = features;
+        this.thresholds = thresholds;
+        this.leftChildren = leftChildren;
+        this.rightChildren = rightChildren;
+        this.labelIds = labelIds;
+        this.labelDictionary = labelDictionary;
+    }
+
+    /**
+     * Compile a tree with its own label dictionary
+     * @param root - the root of the tree
+     * @return the compiled tree
+     */
+    public static CompiledTree compile(TreeNode root) {
+        return compile(root, new LabelDictionary());
+    }
+
+    /**
+     * Compile a tree. Leaf labels are looked up in (or added to) the given dictionary, so
+     * trees compiled with the same dictionary predict comparable label ids.
+     * @param root - the root of the tree
+     * @param labelDictionary - dictionary for the leaves' labels
+     * @return the compiled tree
+     */
+    public static CompiledTree compile(TreeNode root, LabelDictionary labelDictionary) {
+
+        // Number the nodes in breadth-first order
+        List<TreeNode> nodes = new ArrayList<>();
+        nodes.add(root);
+
+        for (int i = 0; i < nodes.size(); ++i) {
+            TreeNode node = nodes.get(i);
+
+            if (!node.isLeaf()) {
+                nodes.add(node.getLeftNode());
+                nodes.add(node.getRightNode());
+            }
+        }
+
+        int numNodes = nodes.size();
+        int[] features = new int[numNodes];
+        double[] thresholds = new double[numNodes];
+        int[] leftChildren = new int[numNodes];
+        int[] rightChildren = new int[numNodes];
+        int[] labelIds = new int[numNodes];
+
+        // Children were added in pairs, in the same order as their parents
+        int next = 1;
+
+        for (int i = 0; i < numNodes; ++i) {
+            TreeNode node = nodes.get(i);
+
+            if (node.isLeaf()) {
+                features[i] = -1;
+                labelIds[i] = labelDictionary.add(node.getLabel());
+            } else {
+                features[i] = node.getFeatureIndex();
+                thresholds[i] = node.getValue();
+                leftChildren[i] = next++;
+                rightChildren[i] = next++;
+            }
+        }
+        return new CompiledTree(features, thresholds, leftChildren, rightChildren, labelIds, labelDictionary);
+    }
+
+    @Override
+    public String predict(Row row) {
+        return labelDictionary.label(predictLabelId(row));
+    }
+
+    /**
+     * Predict the label id for the given row
+     * @param row - a row with features
+     * @return the id of the predicted label in this tree's label dictionary
+     */
+    public int predictLabelId(Row row) {
+        int node = 0;
+        int feature;
+
+        while ((feature = features[node]) >= 0) {
+            node = row.featureAt(feature) < thresholds[node] ? leftChildren[node] : rightChildren[node];
+        }
+        return labelIds[node];
+    }
+
+    /**
+     * Predict the label ids of a block of rows
+     * @param values - the rows' features, row by row
+     * @param numFeatures - number of features per row
+     * @param numRows - number of rows
+     * @param leaves - array to store the label ids in, in row order
+     */
+    void predictLabelIds(double[] values, int numFeatures, int numRows, int[] leaves) {
+
+        for (int i = 0, base = 0; i < numRows; ++i, base += numFeatures) {
+            int node = 0;
+            int feature;
+
+            // Siblings are numbered consecutively, so the right child follows the left one.
+            // Stepping by arithmetic lets the JIT avoid a branch that can't be predicted
+            // when neighboring rows take different paths.
+            while ((feature = features[node]) >= 0) {
+                node = leftChildren[node] + (values[base + feature] < thresholds[node] ? 0 : 1);
+            }
+            leaves[i] = labelIds[node];
+        }
+    }
+
+    /**
+     * Return the feature tested by a node
+     * @param node - a node index
+     * @return the feature index, or -1 if the node is a leaf
+     */
+    int featureAt(int node) {
+        return features[node];
+    }
+
+    /**
+     * Return the threshold of a node
+     * @param node - a node index
+     * @return the threshold; rows with a smaller value go left
+     */
+    double thresholdAt(int node) {
+        return thresholds[node];
+    }
+
+    /**
+     * Return the left child of a node; the right child is the next node
+     * @param node - a node index
+     * @return the index of the left child
+     */
+    int leftChildAt(int node) {
+        return leftChildren[node];
+    }
+
+    /**
+     * Return the label id of a leaf
+     * @param node - a node index
+     * @return the leaf's label id
+     */
+    int labelIdAt(int node) {
+        return labelIds[node];
+    }
+
+    /**
+     * Return the number of nodes in this tree, including leaves
+     * @return the number of nodes
+     */
+    public int numNodes() {
+        return features.length;
+    }
+
+    /**
+     * Return the number of features a row needs for this tree to predict it
+     * @return one more than the highest feature index used by a split
+     */
+    public int numFeaturesUsed() {
+        int used = 0;
+
+        for (int feature : features) {
+            used = Math.max(used, feature + 1);
+        }
+        return used;
+    }
+
+    /**
+     * Get the dictionary for the label ids of this tree's leaves
+     * @return the label dictionary
+     */
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+}
@@ -0,0 +1,163 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A ConfusionMatrix counts prediction outcomes: how many times rows with each actual
+ * label were predicted as each label. Counting is not thread-safe. Threads scoring in
+ * parallel should each count into their own matrix and merge the matrices when done.
+ * Outcomes for rows without an actual label can't be right or wrong, so they are only
+ * counted as unlabeled.
+ *
+ * @author Matt Williams
+ */
+public class ConfusionMatrix {
+
+    /**
+     * Counts keyed by actual label, then predicted label. Counts are one element arrays
+     * so they can be incremented in place.
+     */
+    private final Map<String, Map<String, int[]>> counts = new HashMap<>();
+
+    /**
+     * Every label seen, actual or predicted, in the order first seen
+     */
+    private final Set<String> labels = new LinkedHashSet<>();
+
+    private int total;
+    private int correct;
+    private int unlabeled;
+
+    /**
+     * Add a prediction outcome
+     * @param actual - the actual (expected) label, or null if the row has no label
+     * @param predicted - the predicted label
+     */
+    public void add(String actual, String predicted) {
+
+        if (actual == null) {
+            unlabeled++;
+            return;
+        }
+        add(actual, predicted, 1);
+    }
+
+    /**
+     * Add all outcomes counted by another confusion matrix to this one
+     * @param other - another confusion matrix
+     */
+    public void merge(ConfusionMatrix other) {
+
+        // Keeps labels in the same order as adding the other matrix's outcomes one by one
+        labels.addAll(other.labels);
+        unlabeled += other.unlabeled;
+
+        for (String actual : other.labels) {
+            Map<String, int[]> row = other.counts.get(actual);
+
+            if (row == null) {
+                continue;
+            }
+
+            for (String predicted : other.labels) {
+                int[] count = row.get(predicted);
+
+                if (count != null) {
+                    add(actual, predicted, count[0]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the number of outcomes
+     * @return the number of outcomes
+     */
+    public int total() {
+        return total;
+    }
+
+    /**
+     * Return the number of predictions for rows without a label, which aren't included
+     * in the other counts
+     * @return the number of unlabeled rows
+     */
+    public int unlabeled() {
+        return unlabeled;
+    }
+
+    /**
+     * Return the number of outcomes where the predicted label was the actual label
+     * @return the number of correct predictions
+     */
+    public int correct() {
+        return correct;
+    }
+
+    /**
+     * Return the fraction of correct predictions
+     * @return the accuracy, or NaN if there are no outcomes
+     */
+    public double accuracy() {
+        return ((double) correct) / total;
+    }
+
+    /**
+     * Return how many rows with a label were predicted as another label
+     * @param actual - the actual label
+     * @param predicted - the predicted label
+     * @return the number of outcomes
+     */
+    public int count(String actual, String predicted) {
+        Map<String, int[]> row = counts.get(actual);
+        int[] count = row == null ? null : row.get(predicted);
+        return count == null ? 0 : count[0];
+    }
+
+    /**
+     * Get every label seen, actual or predicted
+     * @return an unmodifiable set of labels, in the order first seen
+     */
+    public Set<String> labels() {
+        return Collections.unmodifiableSet(labels);
+    }
+
+    /**
+     * Clear all outcomes
+     */
+    public void clear() {
+        counts.clear();
+        labels.clear();
+        total = 0;
+        correct = 0;
+        unlabeled = 0;
+    }
+
+    private void add(String actual, String predicted, int count) {
+        labels.add(actual);
+        labels.add(predicted);
+
+        Map<String, int[]> row = counts.get(actual);
+
+        if (row == null) {
+            row = new HashMap<>();
+            counts.put(actual, row);
+        }
+        int[] cell = row.get(predicted);
+
+        if (cell == null) {
+            cell = new int[1];
+            row.put(predicted, cell);
+        }
+        cell[0] += count;
+        total += count;
+
+        if (actual.equals(predicted)) {
+            correct += count;
+        }
+    }
+}
@@ -2,14 +2,27 @@ package com.mattwilliams.decisiontree.base;
 
 import com.mattwilliams.decisiontree.algorithms.BestSplitStrategy;
 import com.mattwilliams.decisiontree.algorithms.InformationGainStrategy;
+import com.mattwilliams.decisiontree.algorithms.SplitCandidate;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * The DecisionTreeBuilder class is used to construct a decision tree. You
  * can specify different splitting algorithms to implement different tree
- * algorithms. Currently accomodates data with 2 possible labels.
+ * algorithms. Data can have any number of labels; leaves hold label ids from
+ * the training data's label dictionary.
+ *
+ * Growth stops at a node when its rows all have the same label or no features are left,
+ * and can be stopped earlier with a maximum depth, a minimum number of rows to split a
+ * node, a minimum number of rows in each child and a minimum gain. These are checked as
+ * each node is grown, so stopping early saves the work of growing the subtree.
+ *
+ * Large trees can be grown with fork-join parallelism: the two subtrees of any node with
+ * more than forkThreshold rows are grown as separate tasks, each with its own fork of the
+ * split strategy. Smaller nodes are grown by plain recursion.
  *
  * @author Matt Williams
  */
@@ -21,35 +34,53 @@ public class DecisionTreeBuilder implements Trainer {
     private BestSplitStrategy splitStrategy;
 
     /**
-     * The first possible label
+     * Whether to presort each feature once per training run instead of sorting at every node
+     */
+    private boolean presorted;
+
+    /**
+     * Nodes with more rows than this grow their subtrees as fork-join tasks
+     */
+    private int forkThreshold = Integer.MAX_VALUE;
+
+    /**
+     * Pool to grow subtrees in, or null to use the common pool
      */
-    private String label1;
+    private ForkJoinPool pool;
 
     /**
-     * The second possible label
+     * Nodes at this depth are leaves; the root is at depth 0
      */
-    private String label2;
+    private int maxDepth = Integer.MAX_VALUE;
 
     /**
-     * Constructs a DecisionTreeBuilder that will classify data as one of two
-     * labels. Uses the information gain algorithm to choose best split.
-     * @param label1 - the first possible label
-     * @param label2 - the second possible label
+     * Nodes with fewer rows than this are leaves
      */
-    public DecisionTreeBuilder(String label1, String label2) {
-        this(label1, label2, new InformationGainStrategy());
+    private int minSamplesSplit = 2;
+
+    /**
+     * Splits leaving fewer rows than this on a side are not made
+     */
+    private int minSamplesLeaf = 1;
+
+    /**
+     * Splits gaining less than this are not made
+     */
+    private double minGain = 0;
+
+    /**
+     * Constructs a DecisionTreeBuilder that uses the information gain algorithm to
+     * choose best split.
+     */
+    public DecisionTreeBuilder() {
+        this(new InformationGainStrategy());
     }
 
     /**
-     * Constructs a DecisionTreeBuilder that will classify data as one of two
-     * labels.
-     * @param label1 - the first possible label
-     * @param label2 - the second possible label
+     * Constructs a DecisionTreeBuilder
      * @param splitStrategy - the strategy to use to find the best split
      */
-    public DecisionTreeBuilder(String label1, String label2, BestSplitStrategy splitStrategy) {
-        this.label1 = label1;
-        this.label2 = label2;
+    public DecisionTreeBuilder(BestSplitStrategy splitStrategy) {
         this.splitStrategy = splitStrategy;
     }
 
@@ -69,6 +100,142 @@ public class DecisionTreeBuilder implements Trainer {
         this.splitStrategy = splitStrategy;
     }
 
+    /**
+     * Returns whether trees are grown on presorted feature indices
+     * @return <code>true</code> if presorted mode is on
+     */
+    public boolean isPresorted() {
+        return presorted;
+    }
+
+    /**
+     * Sets whether trees are grown on presorted feature indices. In presorted mode each
+     * feature is sorted once per call to train and the order is kept through every split,
+     * so finding a node's median is constant time. This costs one int per row per feature.
+     * Trees are always grown presorted when the split strategy is exhaustive.
+     * @param presorted - <code>true</code> to use presorted mode
+     */
+    public void setPresorted(boolean presorted) {
+        this.presorted = presorted;
+    }
+
+    /**
+     * Get the number of rows above which a node's subtrees are grown as fork-join tasks
+     * @return the fork threshold
+     */
+    public int getForkThreshold() {
+        return forkThreshold;
+    }
+
+    /**
+     * Set the number of rows above which a node's subtrees are grown as fork-join tasks.
+     * The default, Integer.MAX_VALUE, grows every tree sequentially. Forking needs a split
+     * strategy that supports BestSplitStrategy.fork. Trees grown with forking are
+     * reproducible, but a random split strategy gives different trees with forking than
+     * without, since each fork gets its own random stream.
+     * @param forkThreshold - the fork threshold, in rows
+     */
+    public void setForkThreshold(int forkThreshold) {
+        this.forkThreshold = forkThreshold;
+    }
+
+    /**
+     * Set the pool to grow subtrees in
+     * @param pool - the pool, or null to use the common pool
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Get the maximum depth of trees
+     * @return the maximum depth
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Set the maximum depth of trees. Nodes at this depth are made leaves; the root is at
+     * depth 0, so a maximum depth of 1 grows a single split. Defaults to no limit.
+     * @param maxDepth - the maximum depth, at least 0
+     */
+    public void setMaxDepth(int maxDepth) {
+
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Maximum depth can't be negative");
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Get the minimum number of rows needed to split a node
+     * @return the minimum number of rows to split
+     */
+    public int getMinSamplesSplit() {
+        return minSamplesSplit;
+    }
+
+    /**
+     * Set the minimum number of rows needed to split a node. Nodes with fewer rows are
+     * made leaves. Defaults to 2.
+     * @param minSamplesSplit - the minimum number of rows to split, at least 2
+     */
+    public void setMinSamplesSplit(int minSamplesSplit) {
+
+        if (minSamplesSplit < 2) {
+            throw new IllegalArgumentException("Minimum rows to split must be at least 2");
+        }
+        this.minSamplesSplit = minSamplesSplit;
+    }
+
+    /**
+     * Get the minimum number of rows on each side of a split
+     * @return the minimum number of rows per leaf
+     */
+    public int getMinSamplesLeaf() {
+        return minSamplesLeaf;
+    }
+
+    /**
+     * Set the minimum number of rows on each side of a split. The limit is passed to the
+     * split strategy, which skips thresholds leaving fewer rows on a side (see
+     * BestSplitStrategy.setMinSamplesLeaf). A node whose best split still leaves fewer
+     * rows on a side is made a leaf instead. A split that sends every row to one side is
+     * still allowed, as it lets the node try the remaining features. Defaults to 1.
+     * @param minSamplesLeaf - the minimum number of rows per leaf, at least 1
+     */
+    public void setMinSamplesLeaf(int minSamplesLeaf) {
+
+        if (minSamplesLeaf < 1) {
+            throw new IllegalArgumentException("Minimum rows per leaf must be at least 1");
+        }
+        this.minSamplesLeaf = minSamplesLeaf;
+    }
+
+    /**
+     * Get the minimum gain of a split
+     * @return the minimum gain
+     */
+    public double getMinGain() {
+        return minGain;
+    }
+
+    /**
+     * Set the minimum gain of a split, as measured by the split strategy. A node whose best
+     * split gains less is made a leaf instead. Only applies to strategies that report
+     * their gain (see BestSplitStrategy.bestGain). Defaults to 0, which allows splits that
+     * gain nothing.
+     * @param minGain - the minimum gain, at least 0
+     */
+    public void setMinGain(double minGain) {
+
+        if (!(minGain >= 0)) {
+            throw new IllegalArgumentException("Minimum gain can't be negative");
+        }
+        this.minGain = minGain;
+    }
+
     @Override
     public Predictor train(Matrix matrix) {
 
@@ -76,36 +243,71 @@ public class DecisionTreeBuilder implements Trainer {
             throw new IllegalArgumentException("Training set can't be empty");
         }
 
+        int labeledRows = 0;
+
+        for (int count : matrix.labelCounts()) {
+            labeledRows += count;
+        }
+
+        if (labeledRows != matrix.size()) {
+            throw new IllegalArgumentException("Every row in the training set must have a label");
+        }
+
         List<Integer> featureIndicies = new ArrayList<>();
 
-        for (int i = 0; i < matrix.get(0).numFeatures(); ++i) {
+        for (int i = 0; i < matrix.numFeatures(); ++i) {
             featureIndicies.add(i);
         }
-        return recurseBuildTree(featureIndicies, matrix);
-    }
+        // Grow the tree on a view so that splits partition a shared row index in place.
+        // Exhaustive strategies need sorted rows at every node, so they always get one
+        // presorted view.
+        Matrix view = presorted || splitStrategy.isExhaustive() ? matrix.presortedView() : matrix.view();
+        splitStrategy.setMinSamplesLeaf(minSamplesLeaf);
+        splitStrategy.prepare(view);
 
-    private TreeNode recurseBuildTree(List<Integer> featureIndices, Matrix split) {
+        if (view.size() > forkThreshold) {
+            ForkJoinPool treePool = pool != null ? pool : ForkJoinPool.commonPool();
+            return treePool.invoke(new GrowTask(featureIndicies, view, splitStrategy, 0));
+        }
+        return recurseBuildTree(featureIndicies, view, splitStrategy, 0);
+    }
 
-        if (split.isEmpty()) {
-            return null; // Shouldn't happen?
+    private TreeNode recurseBuildTree(List<Integer> featureIndices, Matrix split, BestSplitStrategy strategy, int depth) {
 
-        } else if (split.isPure() || featureIndices.isEmpty()) {
+        if (split.isPure() || featureIndices.isEmpty() || depth >= maxDepth || split.size() < minSamplesSplit) {
             // Return a leaf node
-            TreeNode node = new TreeNode();
-            node.setLabel(split.mostCommonLabel());
-            return node;
+            return leaf(split);
 
         } else {
             // Split into two child nodes
+            SplitCandidate best = strategy.findBestSplit(featureIndices, split);
+
+            // A NaN gain means the strategy doesn't measure gain
+            if (best.getGain() < minGain) {
+                return leaf(split);
+            }
+            int bestFeature = best.getFeature();
+            double featureValue = best.getValue();
+
+            // Strategies that don't skip small sides can still pick one, so check before
+            // paying for the partition
+            if (minSamplesLeaf > 1) {
+                int leftRows = countLeft(split, bestFeature, featureValue);
+
+                if (tooSmall(leftRows) || tooSmall(split.size() - leftRows)) {
+                    return leaf(split);
+                }
+            }
+            ArrayList<Matrix> newSplit = split.partition(bestFeature, featureValue);
+            Matrix left = newSplit.get(0);
+            Matrix right = newSplit.get(1);
             TreeNode node = new TreeNode();
-            splitStrategy.evaluateSplits(featureIndices, split, label1, label2);
-            ArrayList<Matrix> newSplit = split.split(splitStrategy.bestFeature(), splitStrategy.featureValue());
 
             // Copy the feature list and remove the best feature
             List<Integer> list = new ArrayList<>(featureIndices.size());
             list.addAll(featureIndices);
 
-            int index = list.indexOf(splitStrategy.bestFeature());
+            int index = list.indexOf(bestFeature);
 
             if (index >= 0) {
                 list.remove(index);
@@ -113,13 +315,97 @@ public class DecisionTreeBuilder implements Trainer {
                 System.err.println("Invalid index!");
             }
 
-            node.setFeatureIndex(splitStrategy.bestFeature());
-            node.setValue(splitStrategy.featureValue());
+            node.setFeatureIndex(bestFeature);
+            node.setValue(featureValue);
 
             // Recurse to build the child nodes
-            node.setLeftNode(recurseBuildTree(list, newSplit.get(0)));
-            node.setRightNode(recurseBuildTree(list, newSplit.get(1)));
+            if (left.isEmpty() || right.isEmpty()) {
+                // An empty side becomes a leaf with this node's label
+                TreeNode leaf = leaf(split);
+                node.setLeftNode(left.isEmpty() ? leaf : recurseBuildTree(list, left, strategy, depth + 1));
+                node.setRightNode(right.isEmpty() ? leaf : recurseBuildTree(list, right, strategy, depth + 1));
+
+            } else if (split.size() > forkThreshold) {
+                // Fork the strategy for both subtrees before either starts, so the forks don't
+                // depend on scheduling
+                GrowTask leftTask = new GrowTask(list, left, strategy.fork(), depth + 1);
+                BestSplitStrategy rightStrategy = strategy.fork();
+                leftTask.fork();
+                node.setRightNode(recurseBuildTree(list, right, rightStrategy, depth + 1));
+                node.setLeftNode(leftTask.join());
+
+            } else {
+                node.setLeftNode(recurseBuildTree(list, left, strategy, depth + 1));
+                node.setRightNode(recurseBuildTree(list, right, strategy, depth + 1));
+            }
             return node;
         }
     }
+
+    /**
+     * Return whether one side of a split has too few rows to be made. An empty side is
+     * allowed, since it becomes a leaf with its parent's label.
+     * @param rows - the number of rows on one side of a split
+     * @return <code>true</code> if the split shouldn't be made
+     */
+    private boolean tooSmall(int rows) {
+        return rows > 0 && rows < minSamplesLeaf;
+    }
+
+    /**
+     * Count the rows that a split would send left, without partitioning them
+     * @param split - the rows to split
+     * @param feature - the feature to split on
+     * @param value - the threshold
+     * @return the number of rows whose feature is below the threshold
+     */
+    private static int countLeft(Matrix split, int feature, double value) {
+        int leftRows = 0;
+
+        for (int i = 0; i < split.size(); ++i) {
+
+            if (split.featureAt(i, feature) < value) {
+                leftRows++;
+            }
+        }
+        return leftRows;
+    }
+
+    /**
+     * Create a leaf node labeled with the most common label in the given rows
+     * @param split - the rows reaching the leaf
+     * @return a leaf node
+     */
+    private static TreeNode leaf(Matrix split) {
+        TreeNode node = new TreeNode();
+        int labelId = split.mostCommonLabelId();
+        node.setLabelId(labelId);
+        node.setLabel(split.getLabelDictionary().label(labelId));
+        return node;
+    }
+
+    /**
+     * Grows a subtree as a fork-join task
+     */
+    private class GrowTask extends RecursiveTask<TreeNode> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Integer> featureIndices;
+        private final Matrix split;
+        private final BestSplitStrategy strategy;
+        private final int depth;
+
+        GrowTask(List<Integer> featureIndices, Matrix split, BestSplitStrategy strategy, int depth) {
+            this.featureIndices = featureIndices;
+            this.split = split;
+            this.strategy = strategy;
+            this.depth = depth;
+        }
+
+        @Override
+        protected TreeNode compute() {
+            return recurseBuildTree(featureIndices, split, strategy, depth);
+        }
+    }
 }
@@ -0,0 +1,205 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The ForestCompactor shrinks trees after training without changing what they predict.
+ *
+ * Trees are rebuilt from the leaves up. A split whose two subtrees are the same, such as
+ * two leaves with the same label, is replaced by its subtree, since every row reaching it
+ * gets the same prediction whichever way it goes. Identical subtrees (same splits and
+ * the same leaf labels) are then stored once and shared, within a tree and across every
+ * tree compacted by the same compactor, so the forest becomes a DAG of shared nodes.
+ *
+ * Everything that predicts with TreeNodes handles shared nodes. Compiled forms of the
+ * trees (CompiledTree, QuickScorerForest, MappedForest, GeneratedForest) expand shared
+ * subtrees again, so compaction only shrinks them by removing redundant splits. The
+ * binary model format (see io.ForestWriter) writes each shared subtree once.
+ *
+ * @author Matt Williams
+ */
+public class ForestCompactor {
+
+    /**
+     * Estimated heap size of a TreeNode on a 64-bit JVM with compressed pointers
+     */
+    public static final int NODE_BYTES = 40;
+
+    /**
+     * The canonical node for every distinct subtree seen so far
+     */
+    private final Map<Key, TreeNode> canonical = new HashMap<>();
+
+    /**
+     * The compacted node for every node passed in, so nodes that are already shared are
+     * compacted and counted once
+     */
+    private final Map<TreeNode, TreeNode> compacted = new IdentityHashMap<>();
+
+    private int collapsedSplits;
+
+    private int sharedSubtrees;
+
+    /**
+     * Compact a tree, sharing subtrees with every tree compacted before it. The tree passed
+     * in isn't changed.
+     * @param root - the root of the tree
+     * @return the root of the compacted tree
+     */
+    public TreeNode compact(TreeNode root) {
+        TreeNode node = compacted.get(root);
+
+        if (node == null) {
+            node = compactNode(root);
+            compacted.put(root, node);
+        }
+        return node;
+    }
+
+    private TreeNode compactNode(TreeNode root) {
+
+        if (root.isLeaf()) {
+            return intern(new Key(root.getLabel()), root);
+        }
+        TreeNode left = compact(root.getLeftNode());
+        TreeNode right = compact(root.getRightNode());
+
+        // Rows reaching this split get the same prediction whichever way they go
+        if (left == right) {
+            collapsedSplits++;
+            return left;
+        }
+        return intern(new Key(root.getFeatureIndex(), root.getValue(), left, right), root);
+    }
+
+    /**
+     * Return the number of distinct nodes in the trees passed to compact
+     * @return the number of nodes before compaction
+     */
+    public int getNodesBefore() {
+        return compacted.size();
+    }
+
+    /**
+     * Return the number of distinct nodes in the compacted trees
+     * @return the number of nodes after compaction
+     */
+    public int getNodesAfter() {
+        return canonical.size();
+    }
+
+    /**
+     * Return the number of splits removed because both their subtrees were the same
+     * @return the number of collapsed splits
+     */
+    public int getCollapsedSplits() {
+        return collapsedSplits;
+    }
+
+    /**
+     * Return the number of times a subtree was replaced by an identical one seen before
+     * @return the number of shared subtrees
+     */
+    public int getSharedSubtrees() {
+        return sharedSubtrees;
+    }
+
+    /**
+     * Return the estimated heap space saved by compaction
+     * @return the bytes saved, estimated at NODE_BYTES per node
+     */
+    public long getBytesSaved() {
+        return (long) (getNodesBefore() - getNodesAfter()) * NODE_BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return "Compacted " + getNodesBefore() + " nodes to " + getNodesAfter() + " (" + collapsedSplits
+                + " redundant splits collapsed, " + sharedSubtrees + " subtrees shared, about "
+                + getBytesSaved() + " bytes saved)";
+    }
+
+    /**
+     * Return the canonical node for a subtree, making a new one the first time it is seen
+     */
+    private TreeNode intern(Key key, TreeNode original) {
+        TreeNode node = canonical.get(key);
+
+        if (node != null) {
+
+            if (!original.isLeaf()) {
+                sharedSubtrees++;
+            }
+            return node;
+        }
+        node = new TreeNode();
+
+        if (original.isLeaf()) {
+            node.setLabel(original.getLabel());
+            node.setLabelId(original.getLabelId());
+        } else {
+            node.setFeatureIndex(original.getFeatureIndex());
+            node.setValue(original.getValue());
+            node.setLeftNode(key.left);
+            node.setRightNode(key.right);
+        }
+        canonical.put(key, node);
+        return node;
+    }
+
+    /**
+     * Identifies a subtree: a leaf by its label, a split by its test and its canonical
+     * children, which are compared by identity
+     */
+    private static final class Key {
+
+        final String label;
+        final int feature;
+        final long threshold;
+        final TreeNode left;
+        final TreeNode right;
+        final int hash;
+
+        Key(String label) {
+            this.label = label;
+            this.feature = -1;
+            this.threshold = 0;
+            this.left = null;
+            this.right = null;
+            this.hash = label.hashCode();
+        }
+
+        Key(int feature, double threshold, TreeNode left, TreeNode right) {
+            this.label = null;
+            this.feature = feature;
+            this.threshold = Double.doubleToLongBits(threshold);
+            this.left = left;
+            this.right = right;
+            int h = 31 * feature + Long.hashCode(this.threshold);
+            h = 31 * h + System.identityHashCode(left);
+            this.hash = 31 * h + System.identityHashCode(right);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+
+            if (label != null || other.label != null) {
+                return label != null && label.equals(other.label);
+            }
+            return feature == other.feature && threshold == other.threshold
+                    && left == other.left && right == other.right;
+        }
+    }
+}
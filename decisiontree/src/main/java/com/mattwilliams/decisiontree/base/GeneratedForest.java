@@ -0,0 +1,374 @@
+package com.mattwilliams.decisiontree.base;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A GeneratedForest predicts with a random forest whose trees have been turned into Java
+ * code at runtime: each tree becomes a static method of nested if/else statements
+ * comparing features with constant thresholds, which the JIT can inline and optimize
+ * like hand-written code. The code is compiled in memory with the JDK's compiler
+ * (javax.tools), so no files or native tools are needed.
+ *
+ * Generated code reads a row's features from an array filled once per prediction, so rows
+ * must have every feature used anywhere in the generated trees.
+ *
+ * A method must stay small enough for the JIT to compile it, so trees with more than
+ * MAX_METHOD_NODES splits are predicted by a CompiledTree instead. When no compiler is
+ * available (e.g. on a JRE) or compiling fails, generate returns the forest's
+ * CompiledForest. Either way the predictions are the same as the forest's.
+ *
+ * @author Matt Williams
+ */
+public class GeneratedForest implements ProbabilityPredictor {
+
+    /**
+     * Largest number of splits in a tree that is turned into code. Keeps each method under
+     * the size the JIT will compile (8000 bytes of bytecode).
+     */
+    public static final int MAX_METHOD_NODES = 350;
+
+    /**
+     * Largest number of splits generated into one class, to stay well inside the limit
+     * on a class's constant pool
+     */
+    static final int MAX_CLASS_NODES = 15000;
+
+    /**
+     * Implemented by generated classes: each adds the votes of its trees for a row
+     */
+    public interface TreeVotes {
+
+        /**
+         * Count the votes of this class's trees for a row
+         * @param features - the row's features
+         * @param votes - vote counts by label id
+         */
+        void vote(double[] features, int[] votes);
+    }
+
+    /**
+     * Each thread's copy of the row being predicted
+     */
+    private static final ThreadLocal<double[]> FEATURES = ThreadLocal.withInitial(() -> new double[0]);
+
+    private final TreeVotes[] generated;
+
+    /**
+     * Trees too large to generate code for
+     */
+    private final CompiledTree[] interpreted;
+
+    private final int numTrees;
+
+    /**
+     * Number of features read by generated code
+     */
+    private final int numFeatures;
+
+    private final LabelDictionary labelDictionary;
+
+    private GeneratedForest(TreeVotes[] generated, CompiledTree[] interpreted, int numTrees, int numFeatures,
+                            LabelDictionary labelDictionary) {
+        this.generated = generated;
+        this.interpreted = interpreted;
+        this.numTrees = numTrees;
+        this.numFeatures = numFeatures;
+        this.labelDictionary = labelDictionary;
+    }
+
+    /**
+     * Returns whether code can be generated, i.e. the JDK's compiler is available
+     * @return <code>true</code> if a compiler is available
+     */
+    public static boolean isAvailable() {
+        return ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    /**
+     * Generate code for a random forest's trees
+     * @param forest - a random forest
+     * @return a GeneratedForest, or the forest's CompiledForest if code can't be generated
+     *         or no tree is small enough to generate code for
+     */
+    public static ProbabilityPredictor generate(RandomForest forest) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+        if (compiler == null) {
+            System.err.println("No Java compiler available, using compiled forest");
+            return forest.compile();
+        }
+
+        LabelDictionary labelDictionary = forest.getLabelDictionary();
+        List<String> classNames = new ArrayList<>();
+        List<JavaFileObject> sources = new ArrayList<>();
+        List<CompiledTree> interpreted = new ArrayList<>();
+
+        // Group trees into classes, leaving large trees to be interpreted
+        StringBuilder methods = new StringBuilder();
+        StringBuilder calls = new StringBuilder();
+        int classNodes = 0;
+        int methodCount = 0;
+        int numFeatures = 0;
+
+        for (TreeNode tree : forest.getTrees()) {
+            int splits = countSplits(tree);
+
+            if (splits > MAX_METHOD_NODES) {
+                interpreted.add(CompiledTree.compile(tree, labelDictionary));
+                continue;
+            }
+
+            if (classNodes + splits > MAX_CLASS_NODES && methodCount > 0) {
+                addClass(classNames, sources, calls, methods);
+                classNodes = 0;
+                methodCount = 0;
+            }
+            numFeatures = Math.max(numFeatures, maxFeature(tree) + 1);
+            String method = "tree" + methodCount++;
+            calls.append("        votes[").append(method).append("(features)]++;\n");
+            methods.append("    private static int ").append(method).append("(double[] features) {\n");
+            appendNode(methods, tree, labelDictionary, 2);
+            methods.append("    }\n\n");
+            classNodes += splits;
+        }
+
+        if (methodCount > 0) {
+            addClass(classNames, sources, calls, methods);
+        }
+
+        // Nothing small enough to generate, so there's nothing to gain over the compiled forest
+        if (sources.isEmpty()) {
+            return forest.compile();
+        }
+
+        try {
+            TreeVotes[] generated = compile(compiler, classNames, sources);
+            return new GeneratedForest(generated, interpreted.toArray(new CompiledTree[interpreted.size()]),
+                    forest.getTrees().size(), numFeatures, labelDictionary);
+        } catch (IOException | ReflectiveOperationException | IllegalStateException e) {
+            System.err.println("Failed to generate code for forest, using compiled forest: " + e.getMessage());
+            return forest.compile();
+        }
+    }
+
+    @Override
+    public String predict(Row row) {
+        int bestLabel = predictLabelId(row);
+        return bestLabel < 0 ? "" : labelDictionary.label(bestLabel);
+    }
+
+    /**
+     * Predict the label id for the given row
+     * @param row - a row with features
+     * @return the id of the predicted label, or -1 if the forest has no labels
+     */
+    public int predictLabelId(Row row) {
+        int numLabels = labelDictionary.size();
+        int[] votes = Votes.counters(numLabels);
+        vote(row, votes);
+        return Votes.winner(votes, numLabels);
+    }
+
+    @Override
+    public void predictProba(Row row, double[] probabilities) {
+        int numLabels = labelDictionary.size();
+        int[] votes = Votes.counters(numLabels);
+        vote(row, votes);
+
+        double scale = numTrees == 0 ? 0 : 1.0 / numTrees;
+
+        for (int label = 0; label < numLabels; ++label) {
+            probabilities[label] = votes[label] * scale;
+        }
+    }
+
+    @Override
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+
+    /**
+     * Return the number of trees predicted by generated code
+     * @return the number of generated trees
+     */
+    public int numGeneratedTrees() {
+        return numTrees - interpreted.length;
+    }
+
+    private void vote(Row row, int[] votes) {
+
+        if (generated.length > 0) {
+            // Read the row once, so generated code compares array elements
+            double[] features = FEATURES.get();
+
+            if (features.length < numFeatures) {
+                features = new double[numFeatures];
+                FEATURES.set(features);
+            }
+
+            for (int feature = 0; feature < numFeatures; ++feature) {
+                features[feature] = row.featureAt(feature);
+            }
+
+            for (TreeVotes trees : generated) {
+                trees.vote(features, votes);
+            }
+        }
+
+        for (CompiledTree tree : interpreted) {
+            votes[tree.predictLabelId(row)]++;
+        }
+    }
+
+    private static int maxFeature(TreeNode node) {
+        return node.isLeaf() ? -1 : Math.max(node.getFeatureIndex(),
+                Math.max(maxFeature(node.getLeftNode()), maxFeature(node.getRightNode())));
+    }
+
+    private static int countSplits(TreeNode node) {
+        return node.isLeaf() ? 0 : 1 + countSplits(node.getLeftNode()) + countSplits(node.getRightNode());
+    }
+
+    /**
+     * Append the code for a node: a return for a leaf, otherwise an if/else on its split
+     */
+    private static void appendNode(StringBuilder code, TreeNode node, LabelDictionary labelDictionary, int depth) {
+        char[] indent = new char[depth * 4];
+        Arrays.fill(indent, ' ');
+
+        if (node.isLeaf()) {
+            code.append(indent).append("return ").append(labelDictionary.add(node.getLabel())).append(";\n");
+            return;
+        }
+        code.append(indent).append("if (features[").append(node.getFeatureIndex()).append("] < ")
+                .append(literal(node.getValue())).append(") {\n");
+        appendNode(code, node.getLeftNode(), labelDictionary, depth + 1);
+        code.append(indent).append("} else {\n");
+        appendNode(code, node.getRightNode(), labelDictionary, depth + 1);
+        code.append(indent).append("}\n");
+    }
+
+    /**
+     * Return a Java literal for a double. Double.toString gives the shortest decimal that
+     * parses back to the same value.
+     */
+    private static String literal(double value) {
+
+        if (Double.isNaN(value)) {
+            return "Double.NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        }
+        return Double.toString(value);
+    }
+
+    private static void addClass(List<String> classNames, List<JavaFileObject> sources, StringBuilder calls,
+                                 StringBuilder methods) {
+        String className = "GeneratedTrees" + classNames.size();
+        String source = "public final class " + className + " implements " + TreeVotes.class.getCanonicalName() + " {\n\n"
+                + "    @Override\n"
+                + "    public void vote(double[] features, int[] votes) {\n"
+                + calls
+                + "    }\n\n"
+                + methods
+                + "}\n";
+        classNames.add(className);
+        sources.add(new SimpleJavaFileObject(URI.create("string:///" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        });
+        calls.setLength(0);
+        methods.setLength(0);
+    }
+
+    /**
+     * Compile the generated classes in memory and create an instance of each
+     */
+    private static TreeVotes[] compile(JavaCompiler compiler, List<String> classNames, List<JavaFileObject> sources)
+            throws IOException, ReflectiveOperationException {
+        Map<String, ByteArrayOutputStream> classFiles = new HashMap<>();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+        try (StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, null)) {
+            JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(standard) {
+                @Override
+                public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                           JavaFileObject.Kind kind, FileObject sibling) {
+                    return new SimpleJavaFileObject(URI.create("mem:///" + className + kind.extension), kind) {
+                        @Override
+                        public OutputStream openOutputStream() {
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            classFiles.put(className, out);
+                            return out;
+                        }
+                    };
+                }
+            };
+            List<String> options = Arrays.asList("-g:none", "-classpath", classPath());
+
+            if (!compiler.getTask(null, fileManager, diagnostics, options, null, sources).call()) {
+                StringBuilder message = new StringBuilder("Generated code didn't compile");
+
+                for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                    message.append("\n").append(diagnostic.getMessage(null));
+                }
+                throw new IllegalStateException(message.toString());
+            }
+        }
+
+        ClassLoader loader = new ClassLoader(GeneratedForest.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream classFile = classFiles.get(name);
+
+                if (classFile == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                byte[] bytes = classFile.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+        TreeVotes[] generated = new TreeVotes[classNames.size()];
+
+        for (int i = 0; i < generated.length; ++i) {
+            generated[i] = (TreeVotes) loader.loadClass(classNames.get(i)).getDeclaredConstructor().newInstance();
+        }
+        return generated;
+    }
+
+    /**
+     * Return a class path that finds this library's classes, even when it was loaded from
+     * somewhere other than the JVM's class path (e.g. a Hadoop job jar)
+     */
+    private static String classPath() {
+        String classPath = System.getProperty("java.class.path");
+
+        try {
+            String library = new File(Row.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+            return library + File.pathSeparator + classPath;
+        } catch (Exception e) {
+            return classPath;
+        }
+    }
+}
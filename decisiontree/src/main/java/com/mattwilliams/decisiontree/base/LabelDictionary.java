@@ -0,0 +1,110 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A LabelDictionary encodes labels as dense integer ids (0, 1, 2, ...) in the
+ * order they are first seen, so that labels can be counted with int arrays
+ * instead of maps. Matrices that are compared or combined, like a training set
+ * and its test set, should share a dictionary.
+ *
+ * Adding labels is not thread-safe; looking them up is, once no more labels are being
+ * added. The map from label to id isn't saved with the dictionary. It is rebuilt on the
+ * first lookup after the dictionary is read back (e.g. by Gson) and published through a
+ * volatile field, so threads racing on that first lookup each see a complete map.
+ *
+ * @author Matt Williams
+ */
+public class LabelDictionary {
+
+    /**
+     * Labels, indexed by id
+     */
+    private List<String> labels = new ArrayList<>();
+
+    /**
+     * Label ids, keyed by label. Rebuilt from labels when needed (e.g. after deserialization).
+     * Never changed after it is published, except by add.
+     */
+    private transient volatile Map<String, Integer> ids = new HashMap<>();
+
+    /**
+     * Return the id of a label, adding the label to the dictionary if it hasn't been seen before
+     * @param label - a label
+     * @return the label's id
+     */
+    public int add(String label) {
+
+        if (label == null) {
+            throw new IllegalArgumentException("Label can't be null");
+        }
+        Map<String, Integer> map = ids();
+        Integer id = map.get(label);
+
+        if (id == null) {
+            id = labels.size();
+            labels.add(label);
+            map.put(label, id);
+        }
+        return id;
+    }
+
+    /**
+     * Return the id of a label
+     * @param label - a label
+     * @return the label's id, or -1 if the label isn't in the dictionary
+     */
+    public int idOf(String label) {
+        Integer id = label == null ? null : ids().get(label);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Return the label with the given id
+     * @param id - a label id
+     * @return the label with that id
+     */
+    public String label(int id) {
+        return labels.get(id);
+    }
+
+    /**
+     * Return the number of labels in the dictionary
+     * @return the number of labels
+     */
+    public int size() {
+        return labels.size();
+    }
+
+    /**
+     * Get all labels, in id order
+     * @return an unmodifiable list of labels
+     */
+    public List<String> labels() {
+        return Collections.unmodifiableList(labels);
+    }
+
+    private Map<String, Integer> ids() {
+        Map<String, Integer> map = ids;
+
+        if (map == null || map.size() != labels.size()) {
+            // Build the whole map before publishing it
+            map = new HashMap<>();
+
+            for (int id = 0; id < labels.size(); ++id) {
+                map.put(labels.get(id), id);
+            }
+            ids = map;
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return labels.toString();
+    }
+}
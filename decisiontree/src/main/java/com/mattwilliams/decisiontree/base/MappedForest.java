@@ -0,0 +1,360 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A MappedForest predicts directly from a memory-mapped model file, without reading the
+ * trees into objects. Opening one only reads the header and the label dictionary, so it
+ * takes the same time whatever the size of the forest, and every process mapping the
+ * same file shares one copy of it in the operating system's page cache. A MappedForest
+ * predicts the same labels and probabilities as the forest it was written from, and can
+ * be shared between threads.
+ *
+ * The file is laid out for walking in place. All numbers are little-endian:
+ * <pre>
+ *   header (32 bytes): magic "RFMM", format version, number of trees, number of nodes,
+ *                      number of labels, CRC32 of the roots and nodes, offset of the
+ *                      labels, 0
+ *   roots: the index of each tree's root node (4 bytes each), padded to 8 bytes
+ *   nodes (16 bytes each): feature (-1 for a leaf), left child (or label id for a
+ *                          leaf), threshold (8-byte double)
+ *   labels: for each label, its length (4 bytes) and UTF-8 bytes
+ * </pre>
+ * Nodes are numbered across the whole forest, each tree's nodes in breadth-first order
+ * as in CompiledTree, so a node's right child is the node after its left child. The
+ * nodes aren't checked when the file is opened, since that would read the whole file;
+ * call verify to compare them against their checksum. Predicting checks each step
+ * through a tree, so a corrupt node throws an IllegalStateException instead of looping
+ * or reading outside the file.
+ *
+ * Mapped files are limited to 2GB. The file stays mapped until the MappedForest is
+ * garbage collected.
+ *
+ * @author Matt Williams
+ */
+public class MappedForest implements ProbabilityPredictor {
+
+    /**
+     * Extension of memory-mapped model files
+     */
+    public static final String EXTENSION = ".mforest";
+
+    /**
+     * Version of the file layout written by this class
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 'R' | 'F' << 8 | 'M' << 16 | 'M' << 24;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int NODE_SIZE = 16;
+
+    private final ByteBuffer buffer;
+
+    private final int numTrees;
+
+    private final int numNodes;
+
+    private final int nodesOffset;
+
+    private final int checksum;
+
+    private final LabelDictionary labelDictionary;
+
+    private MappedForest(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a memory-mapped model");
+        }
+        int version = buffer.getInt(4);
+
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("Unsupported model format version " + version);
+        }
+        numTrees = buffer.getInt(8);
+        numNodes = buffer.getInt(12);
+        int numLabels = buffer.getInt(16);
+        checksum = buffer.getInt(20);
+        int labelsOffset = buffer.getInt(24);
+
+        if (numTrees < 0 || numTrees > (buffer.capacity() - HEADER_SIZE) / 4 || numNodes < 0 || numLabels < 0
+                || labelsOffset > buffer.capacity()
+                || nodesOffset(numTrees) + (long) numNodes * NODE_SIZE != labelsOffset) {
+            throw new IOException("Corrupt memory-mapped model header");
+        }
+        nodesOffset = nodesOffset(numTrees);
+
+        labelDictionary = new LabelDictionary();
+        int position = labelsOffset;
+
+        for (int i = 0; i < numLabels; ++i) {
+
+            if (position + 4 > buffer.capacity()) {
+                throw new IOException("Truncated label dictionary");
+            }
+            int length = buffer.getInt(position);
+            position += 4;
+
+            if (length < 0 || position + length > buffer.capacity()) {
+                throw new IOException("Truncated label dictionary");
+            }
+            byte[] bytes = new byte[length];
+
+            for (int b = 0; b < length; ++b) {
+                bytes[b] = buffer.get(position + b);
+            }
+            labelDictionary.add(new String(bytes, StandardCharsets.UTF_8));
+            position += length;
+        }
+    }
+
+    /**
+     * Map a model file written by write
+     * @param file - the model file
+     * @return a forest predicting from the mapped file
+     * @throws IOException if the file can't be mapped or isn't a memory-mapped model
+     */
+    public static MappedForest open(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Memory-mapped models are limited to 2GB");
+            }
+            return new MappedForest(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write a forest in the memory-mapped layout
+     * @param forest - the forest to write
+     * @param file - the file to write. An existing file is replaced by renaming the new one
+     *             over it, so processes that have it mapped keep predicting from the old model.
+     * @throws IOException if the file can't be written
+     */
+    public static void write(RandomForest forest, Path file) throws IOException {
+        LabelDictionary labelDictionary = forest.getLabelDictionary();
+        List<CompiledTree> trees = new ArrayList<>();
+        long numNodes = 0;
+
+        for (TreeNode tree : forest.getTrees()) {
+            CompiledTree compiled = CompiledTree.compile(tree, labelDictionary);
+            trees.add(compiled);
+            numNodes += compiled.numNodes();
+        }
+
+        List<byte[]> labels = new ArrayList<>();
+        long labelBytes = 0;
+
+        for (String label : labelDictionary.labels()) {
+            byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+            labels.add(bytes);
+            labelBytes += 4 + bytes.length;
+        }
+
+        int nodesOffset = nodesOffset(trees.size());
+        long labelsOffset = nodesOffset + numNodes * NODE_SIZE;
+
+        if (labelsOffset + labelBytes > Integer.MAX_VALUE) {
+            throw new IOException("Memory-mapped models are limited to 2GB");
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) (labelsOffset + labelBytes)).order(ByteOrder.LITTLE_ENDIAN);
+        int position = nodesOffset;
+        int root = 0;
+
+        for (int tree = 0; tree < trees.size(); ++tree) {
+            CompiledTree compiled = trees.get(tree);
+            out.putInt(HEADER_SIZE + tree * 4, root);
+
+            for (int node = 0; node < compiled.numNodes(); ++node, position += NODE_SIZE) {
+                int feature = compiled.featureAt(node);
+                out.putInt(position, feature);
+
+                if (feature < 0) {
+                    out.putInt(position + 4, compiled.labelIdAt(node));
+                } else {
+                    out.putInt(position + 4, root + compiled.leftChildAt(node));
+                    out.putDouble(position + 8, compiled.thresholdAt(node));
+                }
+            }
+            root += compiled.numNodes();
+        }
+
+        for (byte[] label : labels) {
+            out.putInt(position, label.length);
+            System.arraycopy(label, 0, out.array(), position + 4, label.length);
+            position += 4 + label.length;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), HEADER_SIZE, (int) labelsOffset - HEADER_SIZE);
+
+        out.putInt(0, MAGIC);
+        out.putInt(4, FORMAT_VERSION);
+        out.putInt(8, trees.size());
+        out.putInt(12, (int) numNodes);
+        out.putInt(16, labels.size());
+        out.putInt(20, (int) crc.getValue());
+        out.putInt(24, (int) labelsOffset);
+        out.putInt(28, 0);
+
+        // Processes may have the old file mapped, so never change it in place. Write a new
+        // file next to it and rename it over the old one; existing mappings keep the old bytes.
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, "." + file.getFileName(), ".tmp");
+
+        try {
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public String predict(Row row) {
+        int bestLabel = predictLabelId(row);
+        return bestLabel < 0 ? "" : labelDictionary.label(bestLabel);
+    }
+
+    /**
+     * Predict the label id for the given row
+     * @param row - a row with features
+     * @return the id of the predicted label in this forest's label dictionary, or -1 if
+     *         the forest has no labels
+     */
+    public int predictLabelId(Row row) {
+        int numLabels = labelDictionary.size();
+        int[] votes = Votes.counters(numLabels);
+
+        for (int tree = 0; tree < numTrees; ++tree) {
+            votes[treeLabelId(tree, row)]++;
+        }
+        return Votes.winner(votes, numLabels);
+    }
+
+    @Override
+    public void predictProba(Row row, double[] probabilities) {
+        int numLabels = labelDictionary.size();
+        Arrays.fill(probabilities, 0, numLabels, 0);
+
+        for (int tree = 0; tree < numTrees; ++tree) {
+            probabilities[treeLabelId(tree, row)]++;
+        }
+
+        if (numTrees > 0) {
+            double scale = 1.0 / numTrees;
+
+            for (int label = 0; label < numLabels; ++label) {
+                probabilities[label] *= scale;
+            }
+        }
+    }
+
+    @Override
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+
+    /**
+     * Return the number of trees in the forest
+     * @return the number of trees
+     */
+    public int numTrees() {
+        return numTrees;
+    }
+
+    /**
+     * Return the number of nodes in the forest, including leaves
+     * @return the number of nodes
+     */
+    public int numNodes() {
+        return numNodes;
+    }
+
+    /**
+     * Read every tree and compare them against the checksum written with them
+     * @throws IOException if the trees don't match their checksum
+     */
+    public void verify() throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[1 << 16];
+        int end = nodesOffset + numNodes * NODE_SIZE;
+
+        for (int position = HEADER_SIZE; position < end; position += chunk.length) {
+            int length = Math.min(chunk.length, end - position);
+
+            for (int i = 0; i < length; ++i) {
+                chunk[i] = buffer.get(position + i);
+            }
+            crc.update(chunk, 0, length);
+        }
+
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch in memory-mapped model");
+        }
+    }
+
+    /**
+     * Walk a tree in the mapped buffer. The nodes aren't verified when the file is opened,
+     * so each step checks that it moves forward to a node in the file; children always
+     * come after their parent, so a corrupt file can't make the walk loop.
+     */
+    private int treeLabelId(int tree, Row row) {
+        int node = buffer.getInt(HEADER_SIZE + tree * 4);
+
+        if (node < 0 || node >= numNodes) {
+            throw corruptNode(node);
+        }
+        int position = nodesOffset + node * NODE_SIZE;
+        int feature;
+
+        while ((feature = buffer.getInt(position)) >= 0) {
+            int left = buffer.getInt(position + 4);
+
+            if (left <= node || left >= numNodes - 1) {
+                throw corruptNode(node);
+            }
+            node = left + (row.featureAt(feature) < buffer.getDouble(position + 8) ? 0 : 1);
+            position = nodesOffset + node * NODE_SIZE;
+        }
+        int labelId = buffer.getInt(position + 4);
+
+        if (labelId < 0 || labelId >= labelDictionary.size()) {
+            throw corruptNode(node);
+        }
+        return labelId;
+    }
+
+    private static IllegalStateException corruptNode(int node) {
+        return new IllegalStateException("Corrupt node " + node + " in memory-mapped model");
+    }
+
+    /**
+     * Return the offset of the nodes for a forest with the given number of trees
+     */
+    private static int nodesOffset(int numTrees) {
+        return (HEADER_SIZE + numTrees * 4 + 7) & ~7;
+    }
+}
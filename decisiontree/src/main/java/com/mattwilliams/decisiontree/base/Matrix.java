@@ -4,7 +4,15 @@ import java.util.*;
 
 /**
  * A Matrix represents a collection of Rows with features
- * and labels.
+ * and labels. Data is stored by column: one primitive array per feature
+ * plus an array of label ids (see {@link LabelDictionary}), so no feature value is ever boxed.
+ * <p>
+ * A Matrix can also be a view onto another matrix's columns (see {@link #view()}). A view
+ * selects its rows through a range of a row index array that it shares with the views
+ * created from it by {@link #partition(int, double)}, so partitioning never copies data.
+ * A presorted view (see {@link #presortedView()}) additionally keeps, for every feature,
+ * its rows in ascending order of that feature. The order is computed once and kept
+ * stable through partitioning, so medians never need to be sorted again.
  *
  * @author Matt Williams
  *
@@ -13,16 +21,94 @@ import java.util.*;
 public class Matrix {
 
     /**
-     * Rows in this matrix
+     * Initial number of rows to allocate space for
      */
-    private ArrayList<Row> rows = new ArrayList<>();
+    private static final int INITIAL_CAPACITY = 16;
 
     /**
-     * Add a row to this matrix
+     * Feature values, one array per feature. Only the first size entries
+     * of each column are in use.
+     */
+    private double[][] columns;
+
+    /**
+     * Label id of each row in the label dictionary (or -1 if the row has no label)
+     */
+    private int[] labelIds;
+
+    /**
+     * Number of rows in this matrix
+     */
+    private int size;
+
+    /**
+     * If this matrix is a view, the row index array shared by related views, otherwise null
+     */
+    private int[] index;
+
+    /**
+     * If this matrix is a view, the position of its first row in the index array
+     */
+    private int offset;
+
+    /**
+     * If this matrix is a presorted view, one row index array per feature with the view's
+     * rows sorted by that feature, otherwise null. Index is the array for feature 0.
+     */
+    private int[][] sorted;
+
+    /**
+     * If this matrix is a presorted view, scratch space used for stable partitioning
+     */
+    private int[] scratch;
+
+    /**
+     * Dictionary used to encode labels. Shared with matrices created by split and with views.
+     */
+    private LabelDictionary labelDictionary;
+
+    /**
+     * Creates an empty Matrix with its own label dictionary. The number of features is
+     * set by the first row added.
+     */
+    public Matrix() {
+        this(new LabelDictionary());
+    }
+
+    /**
+     * Creates an empty Matrix that encodes labels with the given dictionary. The number
+     * of features is set by the first row added.
+     * @param labelDictionary - the dictionary to encode labels with
+     */
+    public Matrix(LabelDictionary labelDictionary) {
+        this.labelDictionary = labelDictionary;
+    }
+
+    /**
+     * Add a row to this matrix. The row's values are copied into the matrix.
      * @param row - row to add
      */
     public void addRow(Row row) {
-        rows.add(row);
+
+        if (index != null) {
+            throw new UnsupportedOperationException("Can't add rows to a Matrix view");
+        }
+
+        if (columns == null) {
+            allocate(row.numFeatures(), INITIAL_CAPACITY);
+        } else if (row.numFeatures() != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " features, got " + row.numFeatures());
+        }
+
+        if (size == labelIds.length) {
+            grow(size * 2);
+        }
+
+        for (int feature = 0; feature < columns.length; ++feature) {
+            columns[feature][size] = row.featureAt(feature);
+        }
+        labelIds[size] = row.getLabel() == null ? -1 : labelDictionary.add(row.getLabel());
+        size++;
     }
 
     /**
@@ -30,16 +116,98 @@ public class Matrix {
      * @return the number of rows in the matrix
      */
     public int size() {
-        return rows.size();
+        return size;
+    }
+
+    /**
+     * Return the number of features in each row of this matrix
+     * @return the number of features, or 0 if no rows have been added
+     */
+    public int numFeatures() {
+        return columns == null ? 0 : columns.length;
     }
 
     /**
      * Get the row at the given index
      * @param index - index of a row
-     * @return - the row at the given index
+     * @return - a read-only view of the row at the given index
      */
     public Row get(int index) {
-        return rows.get(index);
+        checkIndex(index);
+        return new RowView(index);
+    }
+
+    /**
+     * Return the value of a feature for the row at the given index
+     * @param index - index of a row
+     * @param feature - a feature index
+     * @return the feature's value for that row
+     */
+    public double featureAt(int index, int feature) {
+        checkIndex(index);
+        return columns[feature][row(index)];
+    }
+
+    /**
+     * Return the label for the row at the given index
+     * @param index - index of a row
+     * @return the row's label
+     */
+    public String labelAt(int index) {
+        checkIndex(index);
+        int id = labelIds[row(index)];
+        return id < 0 ? null : labelDictionary.label(id);
+    }
+
+    /**
+     * Return the label id for the row at the given index
+     * @param index - index of a row
+     * @return the row's label id in the label dictionary, or -1 if the row has no label
+     */
+    public int labelIdAt(int index) {
+        checkIndex(index);
+        return labelIds[row(index)];
+    }
+
+    /**
+     * Get the dictionary this matrix uses to encode labels
+     * @return the label dictionary
+     */
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+
+    /**
+     * Return the position of the row at the given index in the columns backing this matrix.
+     * Related views return the same id for the same row, so ids can be used to index
+     * per-row data computed once for a whole training run.
+     * @param index - index of a row
+     * @return the row's id
+     */
+    public int rowId(int index) {
+        checkIndex(index);
+        return row(index);
+    }
+
+    /**
+     * Copy the features of a block of rows into an array, row by row, so that predictors
+     * can read each row's features from consecutive memory
+     * @param from - index of the first row to copy
+     * @param to - index after the last row to copy
+     * @param values - array to copy into; feature f of row i goes in values[(i - from) * numFeatures() + f]
+     */
+    void copyFeatures(int from, int to, double[] values) {
+        checkIndex(from);
+        checkIndex(to - 1);
+        int numFeatures = numFeatures();
+
+        for (int feature = 0; feature < numFeatures; ++feature) {
+            double[] column = columns[feature];
+
+            for (int i = from, k = feature; i < to; ++i, k += numFeatures) {
+                values[k] = column[row(i)];
+            }
+        }
     }
 
     /**
@@ -47,7 +215,7 @@ public class Matrix {
      * @return <code>true</code> if empty, otherwise <code>false</code>
      */
     public boolean isEmpty() {
-        return rows.isEmpty();
+        return size == 0;
     }
 
     /**
@@ -58,9 +226,9 @@ public class Matrix {
      * otherwise returns <code>false</code>
      */
     public boolean isPure() {
-        for (Row row : rows) {
+        for (int i = 1; i < size; ++i) {
 
-            if (!row.getLabel().equals(rows.get(0))) {
+            if (labelIds[row(i)] != labelIds[row(0)]) {
                 return false;
             }
         }
@@ -72,50 +240,80 @@ public class Matrix {
      * @return an unmodifiable list of the rows in this matrix
      */
     public List<Row> rows() {
-        return Collections.unmodifiableList(this.rows);
+        return new AbstractList<Row>() {
+            @Override
+            public Row get(int index) {
+                return Matrix.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 
     /**
-     * Return a list of values for the given feature (noted by its index)
+     * Return the values for the given feature (noted by its index)
      * @param index - the index of a feature
-     * @return a list of values for that feature
+     * @return a copy of the values for that feature
      */
-    public List<Double> featureValues(int index) {
-        ArrayList<Double> values = new ArrayList<>();
+    public double[] featureValues(int index) {
+
+        if (columns == null) {
+            return new double[0];
+        } else if (this.index == null) {
+            return Arrays.copyOf(columns[index], size);
+        }
+        double[] column = columns[index];
+        double[] values = new double[size];
 
-        for (Row row : rows) {
-            values.add(row.featureAt(index));
+        for (int i = 0; i < size; ++i) {
+            values[i] = column[this.index[offset + i]];
         }
         return values;
     }
 
     /**
-     * Return the label that appears most often in this Matrix
-     * @return - the label that appears most often in this Matrix
+     * Count the rows with each label
+     * @return an array indexed by label id holding the number of rows with that label
      */
-    public String mostCommonLabel() {
+    public int[] labelCounts() {
+        int[] counts = new int[labelDictionary.size()];
 
-        Map<String, Integer> labelCount = new HashMap<>();
+        for (int i = 0; i < size; ++i) {
+            int id = labelIds[row(i)];
 
-        for (Row row : rows) {
-            String label = row.getLabel();
-
-            if (!labelCount.containsKey(label)) {
-                labelCount.put(label, 0);
+            if (id >= 0) {
+                counts[id]++;
             }
-            labelCount.put(label, labelCount.get(label) + 1);
         }
+        return counts;
+    }
 
-        int mostCommonCount = 0;
-        String mostCommonFeature = null;
+    /**
+     * Return the id of the label that appears most often in this Matrix
+     * @return the id of the most common label, or -1 if no rows have labels
+     */
+    public int mostCommonLabelId() {
+        int[] counts = labelCounts();
+        int mostCommonId = -1;
 
-        for (Map.Entry<String, Integer> entry : labelCount.entrySet()) {
-            if (entry.getValue() > mostCommonCount) {
-                mostCommonCount = entry.getValue();
-                mostCommonFeature = entry.getKey();
+        for (int id = 0; id < counts.length; ++id) {
+            if (counts[id] > 0 && (mostCommonId < 0 || counts[id] > counts[mostCommonId])) {
+                mostCommonId = id;
             }
         }
-        return mostCommonFeature;
+        return mostCommonId;
+    }
+
+    /**
+     * Return the label that appears most often in this Matrix
+     * @return - the label that appears most often in this Matrix
+     */
+    public String mostCommonLabel() {
+        int id = mostCommonLabelId();
+        return id < 0 ? null : labelDictionary.label(id);
     }
 
     /**
@@ -124,14 +322,26 @@ public class Matrix {
      * @return - the median for the feature's values
      */
     public double median(int feature) {
-        List<Double> values = featureValues(feature);
-        Collections.sort(values);
-        int middle = values.size() / 2;
 
-        if (values.size() % 2 == 1) {
-            return values.get(middle);
+        if (sorted != null && sorted[feature] != null) {
+            double[] column = columns[feature];
+            int[] rows = sorted[feature];
+            int middle = offset + size / 2;
+
+            if (size % 2 == 1) {
+                return column[rows[middle]];
+            } else {
+                return (column[rows[middle-1]] + column[rows[middle]]) / 2.0;
+            }
+        }
+        double[] values = featureValues(feature);
+        Arrays.sort(values);
+        int middle = values.length / 2;
+
+        if (values.length % 2 == 1) {
+            return values[middle];
         } else {
-            return (values.get(middle-1) + values.get(middle)) / 2.0;
+            return (values[middle-1] + values[middle]) / 2.0;
         }
     }
 
@@ -144,16 +354,29 @@ public class Matrix {
      * @return a list of Matrix objects, where index 0 is the left split and index 1 is the right split
      */
     public ArrayList<Matrix> split(int feature, double value) {
-        Matrix left = new Matrix();
-        Matrix right = new Matrix();
+        double[] splitColumn = columns == null ? new double[0] : columns[feature];
+        int leftSize = 0;
 
-        for (Row row : rows) {
+        for (int i = 0; i < size; ++i) {
+            if (splitColumn[row(i)] < value) {
+                leftSize++;
+            }
+        }
 
-            if (row.featureAt(feature) < value) {
-                left.addRow(row);
-            } else {
-                right.addRow(row);
+        Matrix left = new Matrix(labelDictionary);
+        Matrix right = new Matrix(labelDictionary);
+        left.allocate(numFeatures(), leftSize);
+        right.allocate(numFeatures(), size - leftSize);
+
+        for (int i = 0; i < size; ++i) {
+            int source = row(i);
+            Matrix target = splitColumn[source] < value ? left : right;
+            int row = target.size++;
+
+            for (int f = 0; f < target.columns.length; ++f) {
+                target.columns[f][row] = columns[f][source];
             }
+            target.labelIds[row] = labelIds[source];
         }
         ArrayList<Matrix> split = new ArrayList<>();
         split.add(left);
@@ -161,6 +384,219 @@ public class Matrix {
         return split;
     }
 
+    /**
+     * Returns a read-only view of all rows in this matrix, backed by a new row index array.
+     * Views created from the result by partition share that array.
+     * @return a view of this matrix
+     */
+    public Matrix view() {
+        int[] rows = new int[size];
+
+        for (int i = 0; i < size; ++i) {
+            rows[i] = row(i);
+        }
+        Matrix view = view(rows, 0, size);
+        view.sorted = null;
+        view.scratch = null;
+        return view;
+    }
+
+    /**
+     * Returns a read-only view of the rows at the given indices, in the given order.
+     * No data is copied.
+     * @param indices - indices of rows in this matrix
+     * @return a view of the selected rows
+     */
+    public Matrix subset(int[] indices) {
+        int[] rows = new int[indices.length];
+
+        for (int i = 0; i < indices.length; ++i) {
+            checkIndex(indices[i]);
+            rows[i] = row(indices[i]);
+        }
+        Matrix view = view(rows, 0, rows.length);
+        view.sorted = null;
+        view.scratch = null;
+        return view;
+    }
+
+    /**
+     * Returns a read-only view of all rows in this matrix that also keeps the rows
+     * sorted by each feature. Each feature is sorted once here; views created from the
+     * result by partition keep those orders without sorting again.
+     * @return a presorted view of this matrix
+     */
+    public Matrix presortedView() {
+        List<Integer> features = new ArrayList<>(numFeatures());
+
+        for (int feature = 0; feature < numFeatures(); ++feature) {
+            features.add(feature);
+        }
+        return presortedView(features);
+    }
+
+    /**
+     * Returns a read-only view of all rows in this matrix that keeps the rows sorted by
+     * the given features only, which is cheaper when only a few features will be
+     * evaluated. sortedFeatureAt and sortedLabelIdAt work only for these features.
+     * @param features - the features to sort by
+     * @return a presorted view of this matrix, or a plain view if no features are given
+     */
+    public Matrix presortedView(List<Integer> features) {
+        int[][] orders = new int[numFeatures()][];
+        int[] buffer = new int[size];
+        int[] first = null;
+
+        for (int feature : features) {
+
+            if (orders[feature] == null) {
+                orders[feature] = view().index;
+                sortRows(orders[feature], columns[feature], buffer, 0, size);
+
+                if (first == null) {
+                    first = orders[feature];
+                }
+            }
+        }
+
+        if (first == null) {
+            return view();
+        }
+        Matrix view = view(first, 0, size);
+        view.sorted = orders;
+        view.scratch = buffer;
+        return view;
+    }
+
+    /**
+     * Like split, but without copying: the rows of this view are reordered in place so
+     * that rows whose value for the feature is less than the threshold value come first,
+     * and two views onto the two halves are returned. The set of rows in this view
+     * doesn't change, only their order. If this matrix isn't a view, a view of it is
+     * partitioned instead.
+     * <p>
+     * Partitioning a presorted view keeps each feature sorted within the two halves but not
+     * across this view, so a presorted view should only be partitioned once.
+     * @param feature - the feature to split on
+     * @param value - a value acting as a threshold value
+     * @return a list of Matrix views, where index 0 is the left split and index 1 is the right split
+     */
+    public ArrayList<Matrix> partition(int feature, double value) {
+
+        if (index == null) {
+            return view().partition(feature, value);
+        } else if (sorted != null) {
+            return partitionSorted(feature, value);
+        }
+        double[] splitColumn = columns == null ? new double[0] : columns[feature];
+        int left = offset;
+        int right = offset + size - 1;
+
+        while (left <= right) {
+
+            if (splitColumn[index[left]] < value) {
+                left++;
+            } else {
+                int swap = index[left];
+                index[left] = index[right];
+                index[right--] = swap;
+            }
+        }
+        int leftSize = left - offset;
+
+        ArrayList<Matrix> split = new ArrayList<>();
+        split.add(view(index, offset, leftSize));
+        split.add(view(index, left, size - leftSize));
+        return split;
+    }
+
+    /**
+     * Partition a presorted view, keeping every feature's rows in sorted order
+     * @param feature - the feature to split on
+     * @param value - a value acting as a threshold value
+     * @return a list of presorted views, where index 0 is the left split and index 1 is the right split
+     */
+    private ArrayList<Matrix> partitionSorted(int feature, double value) {
+        double[] splitColumn = columns[feature];
+        int leftSize = 0;
+
+        for (int[] rows : sorted) {
+
+            if (rows == null) {
+                continue;
+            }
+
+            // Stable partition: lefts are compacted in place, rights are set aside in scratch
+            int left = offset;
+            int right = offset;
+
+            for (int i = offset; i < offset + size; ++i) {
+
+                if (splitColumn[rows[i]] < value) {
+                    rows[left++] = rows[i];
+                } else {
+                    scratch[right++] = rows[i];
+                }
+            }
+            System.arraycopy(scratch, offset, rows, left, right - offset);
+            leftSize = left - offset;
+        }
+
+        ArrayList<Matrix> split = new ArrayList<>();
+        split.add(view(index, offset, leftSize));
+        split.add(view(index, offset + leftSize, size - leftSize));
+        return split;
+    }
+
+    /**
+     * Return the k-th smallest value of a feature in this presorted view
+     * @param feature - a feature index
+     * @param k - a rank, from 0 to size() - 1
+     * @return the value of the feature for the row with that rank
+     * @throws IllegalStateException if this matrix isn't a presorted view
+     */
+    public double sortedFeatureAt(int feature, int k) {
+        return columns[feature][sortedRow(feature, k)];
+    }
+
+    /**
+     * Return the label id of the row with the k-th smallest value of a feature in this presorted view
+     * @param feature - a feature index
+     * @param k - a rank, from 0 to size() - 1
+     * @return the label id of the row with that rank, or -1 if it has no label
+     * @throws IllegalStateException if this matrix isn't a presorted view
+     */
+    public int sortedLabelIdAt(int feature, int k) {
+        return labelIds[sortedRow(feature, k)];
+    }
+
+    private int sortedRow(int feature, int k) {
+
+        if (sorted == null) {
+            throw new IllegalStateException("Matrix is not a presorted view");
+        } else if (sorted[feature] == null) {
+            throw new IllegalStateException("Matrix is not sorted by feature " + feature);
+        }
+        checkIndex(k);
+        return sorted[feature][offset + k];
+    }
+
+    /**
+     * Returns <code>true</code> if this matrix is a presorted view
+     * @return <code>true</code> if this matrix is a presorted view, otherwise <code>false</code>
+     */
+    public boolean isPresorted() {
+        return sorted != null;
+    }
+
+    /**
+     * Returns <code>true</code> if this matrix is a view onto another matrix's columns
+     * @return <code>true</code> if this matrix is a view, otherwise <code>false</code>
+     */
+    public boolean isView() {
+        return index != null;
+    }
+
     /**
      * Returns a representation of this data matrix as a comma separated value String, with lines
      * ending in the system's line separator
@@ -168,10 +604,137 @@ public class Matrix {
      */
     public String toCsv() {
         ArrayList<String> csv = new ArrayList<>();
-        for (Row row : rows) {
+        for (Row row : rows()) {
             csv.add(row.toCsvString());
         }
         return String.join(System.lineSeparator(), csv);
     }
 
+    /**
+     * Allocate empty columns for the given number of features and rows
+     * @param numFeatures - the number of features
+     * @param capacity - the number of rows to allocate space for
+     */
+    private void allocate(int numFeatures, int capacity) {
+        columns = new double[numFeatures][capacity];
+        labelIds = new int[capacity];
+    }
+
+    /**
+     * Grow the columns so they can hold the given number of rows
+     * @param capacity - the number of rows to allocate space for
+     */
+    private void grow(int capacity) {
+        capacity = Math.max(capacity, INITIAL_CAPACITY);
+
+        for (int feature = 0; feature < columns.length; ++feature) {
+            columns[feature] = Arrays.copyOf(columns[feature], capacity);
+        }
+        labelIds = Arrays.copyOf(labelIds, capacity);
+    }
+
+    /**
+     * Create a view onto this matrix's columns
+     * @param index - row index array
+     * @param offset - position of the view's first row in the index array
+     * @param size - number of rows in the view
+     * @return a view sharing this matrix's columns and labels
+     */
+    private Matrix view(int[] index, int offset, int size) {
+        Matrix view = new Matrix(labelDictionary);
+        view.columns = columns;
+        view.labelIds = labelIds;
+        view.index = index;
+        view.offset = offset;
+        view.size = size;
+        view.sorted = sorted;
+        view.scratch = scratch;
+        return view;
+    }
+
+    /**
+     * Stable merge sort of a range of row positions by their value in a column
+     * @param rows - row positions to sort
+     * @param column - values to sort by
+     * @param buffer - scratch space at least as long as rows
+     * @param from - start of the range (inclusive)
+     * @param to - end of the range (exclusive)
+     */
+    private static void sortRows(int[] rows, double[] column, int[] buffer, int from, int to) {
+
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sortRows(rows, column, buffer, from, middle);
+        sortRows(rows, column, buffer, middle, to);
+
+        if (Double.compare(column[rows[middle-1]], column[rows[middle]]) <= 0) {
+            return;
+        }
+        System.arraycopy(rows, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+
+        for (int i = from; i < to; ++i) {
+
+            if (right >= to || (left < middle && Double.compare(column[buffer[left]], column[buffer[right]]) <= 0)) {
+                rows[i] = buffer[left++];
+            } else {
+                rows[i] = buffer[right++];
+            }
+        }
+    }
+
+    /**
+     * Map a row index of this matrix to a position in its columns
+     * @param i - index of a row in this matrix
+     * @return the position of the row in the columns
+     */
+    private int row(int i) {
+        return index == null ? i : index[offset + i];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /**
+     * A read-only Row backed by this matrix's columns
+     */
+    private class RowView extends Row {
+
+        private final int index;
+
+        RowView(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public double featureAt(int feature) {
+            return columns[feature][row(index)];
+        }
+
+        @Override
+        public void addFeature(double feature) {
+            throw new UnsupportedOperationException("Rows in a Matrix are read-only");
+        }
+
+        @Override
+        public String getLabel() {
+            return labelAt(index);
+        }
+
+        @Override
+        public void setLabel(String label) {
+            throw new UnsupportedOperationException("Rows in a Matrix are read-only");
+        }
+
+        @Override
+        public int numFeatures() {
+            return Matrix.this.numFeatures();
+        }
+    }
 }
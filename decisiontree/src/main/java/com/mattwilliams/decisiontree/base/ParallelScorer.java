@@ -0,0 +1,215 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The ParallelScorer predicts the rows of a matrix on all cores. Rows are split into
+ * chunks that are predicted as fork-join tasks with the batch Predictor API, sharing one
+ * read-only predictor. When scoring against the matrix's labels, each task counts its
+ * own outcomes and the partial counts are merged as the tasks join, so scoring needs no
+ * locks.
+ *
+ * RandomForests are compiled before scoring (see RandomForest.compile). Other predictors
+ * must be safe to call from several threads at once.
+ *
+ * @author Matt Williams
+ */
+public class ParallelScorer {
+
+    /**
+     * Default number of rows predicted by each task
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private final Predictor predictor;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Pool to score in, or null to use the common pool
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Creates a ParallelScorer
+     * @param predictor - the predictor to score with
+     */
+    public ParallelScorer(Predictor predictor) {
+        this.predictor = predictor instanceof RandomForest ? ((RandomForest) predictor).compile() : predictor;
+    }
+
+    /**
+     * Get the number of rows predicted by each task
+     * @return the chunk size
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the number of rows predicted by each task
+     * @param chunkSize - the chunk size, at least 1
+     */
+    public void setChunkSize(int chunkSize) {
+
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Set the pool to score in
+     * @param pool - the pool, or null to use the common pool
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Predict the labels of all rows in a matrix
+     * @param matrix - rows with features
+     * @return the predicted labels, in row order
+     */
+    public String[] predict(Matrix matrix) {
+        String[] labels = new String[matrix.size()];
+        pool().invoke(new ScoreTask(matrix, 0, matrix.size(), labels, false));
+        return labels;
+    }
+
+    /**
+     * Predict the labels of all rows in a matrix and count the outcomes against the rows'
+     * labels
+     * @param matrix - labeled rows with features
+     * @return the outcomes
+     */
+    public ConfusionMatrix score(Matrix matrix) {
+        String[] labels = new String[matrix.size()];
+        return pool().invoke(new ScoreTask(matrix, 0, matrix.size(), labels, true));
+    }
+
+    /**
+     * Predict the probability of each label for all rows in a matrix
+     * @param matrix - rows with features
+     * @return the probabilities; label l of row i is at index i * number of labels + l
+     * @throws UnsupportedOperationException if the predictor doesn't predict probabilities
+     */
+    public double[] predictProba(Matrix matrix) {
+        double[] probabilities = new double[matrix.size() * probabilityPredictor().getLabelDictionary().size()];
+        predictProba(matrix, probabilities);
+        return probabilities;
+    }
+
+    /**
+     * Predict the probability of each label for all rows in a matrix
+     * @param matrix - rows with features
+     * @param probabilities - array to store the probabilities in; label l of row i goes in
+     *                      probabilities[i * number of labels + l]
+     * @throws UnsupportedOperationException if the predictor doesn't predict probabilities
+     */
+    public void predictProba(Matrix matrix, double[] probabilities) {
+        pool().invoke(new ProbaTask(probabilityPredictor(), matrix, 0, matrix.size(), probabilities));
+    }
+
+    private ProbabilityPredictor probabilityPredictor() {
+
+        if (!(predictor instanceof ProbabilityPredictor)) {
+            throw new UnsupportedOperationException(predictor.getClass().getSimpleName() + " doesn't predict probabilities");
+        }
+        return (ProbabilityPredictor) predictor;
+    }
+
+    private ForkJoinPool pool() {
+        return pool != null ? pool : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Predicts a range of rows, splitting it in half until it is no bigger than a chunk
+     */
+    private class ScoreTask extends RecursiveTask<ConfusionMatrix> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Matrix matrix;
+        private final int from;
+        private final int to;
+        private final String[] labels;
+        private final boolean count;
+
+        ScoreTask(Matrix matrix, int from, int to, String[] labels, boolean count) {
+            this.matrix = matrix;
+            this.from = from;
+            this.to = to;
+            this.labels = labels;
+            this.count = count;
+        }
+
+        @Override
+        protected ConfusionMatrix compute() {
+
+            if (to - from > chunkSize) {
+                int middle = (from + to) >>> 1;
+                ScoreTask left = new ScoreTask(matrix, from, middle, labels, count);
+                left.fork();
+                ConfusionMatrix right = new ScoreTask(matrix, middle, to, labels, count).compute();
+                ConfusionMatrix outcomes = left.join();
+
+                // Merge in row order so the labels come out in the same order as sequentially
+                if (outcomes != null) {
+                    outcomes.merge(right);
+                }
+                return outcomes;
+            }
+
+            // Tasks write disjoint ranges of the shared labels array
+            predictor.predict(matrix, from, to, labels);
+
+            if (!count) {
+                return null;
+            }
+            ConfusionMatrix outcomes = new ConfusionMatrix();
+
+            for (int i = from; i < to; ++i) {
+                outcomes.add(matrix.labelAt(i), labels[i]);
+            }
+            return outcomes;
+        }
+    }
+
+    /**
+     * Predicts the probabilities of a range of rows, splitting it in half until it is no
+     * bigger than a chunk
+     */
+    private class ProbaTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ProbabilityPredictor predictor;
+        private final Matrix matrix;
+        private final int from;
+        private final int to;
+        private final double[] probabilities;
+
+        ProbaTask(ProbabilityPredictor predictor, Matrix matrix, int from, int to, double[] probabilities) {
+            this.predictor = predictor;
+            this.matrix = matrix;
+            this.from = from;
+            this.to = to;
+            this.probabilities = probabilities;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > chunkSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ProbaTask(predictor, matrix, from, middle, probabilities),
+                        new ProbaTask(predictor, matrix, middle, to, probabilities));
+            } else {
+                predictor.predictProba(matrix, from, to, probabilities);
+            }
+        }
+    }
+}
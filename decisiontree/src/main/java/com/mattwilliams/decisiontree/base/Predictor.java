@@ -1,7 +1,9 @@
 package com.mattwilliams.decisiontree.base;
 
 /**
- * Classes implementing Predictor can predict a label given a row of data.
+ * Classes implementing Predictor can predict a label given a row of data. Whole
+ * matrices, or blocks of their rows, can be predicted at once; predictors that can do
+ * this faster than one row at a time override the batch methods.
  */
 public interface Predictor {
 
@@ -11,4 +13,39 @@ public interface Predictor {
      * @return the predicted label
      */
     String predict(Row row);
+
+    /**
+     * Predict the labels of all rows in a matrix
+     * @param matrix - rows with features
+     * @return the predicted labels, in row order
+     */
+    default String[] predict(Matrix matrix) {
+        String[] labels = new String[matrix.size()];
+        predict(matrix, 0, matrix.size(), labels);
+        return labels;
+    }
+
+    /**
+     * Predict the labels of a block of rows in a matrix
+     * @param matrix - rows with features
+     * @param from - index of the first row to predict
+     * @param to - index after the last row to predict
+     * @param labels - array to store the labels in; the label of row i goes in labels[i]
+     */
+    default void predict(Matrix matrix, int from, int to, String[] labels) {
+
+        for (int i = from; i < to; ++i) {
+            labels[i] = predict(matrix.get(i));
+        }
+    }
+
+    /**
+     * Return a number that changes whenever the model changes, so anything derived from
+     * its predictions, such as a cache, can tell when to throw them away. Predictors
+     * that never change return 0.
+     * @return the model version
+     */
+    default long modelVersion() {
+        return 0;
+    }
 }
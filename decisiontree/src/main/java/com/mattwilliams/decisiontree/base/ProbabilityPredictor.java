@@ -0,0 +1,53 @@
+package com.mattwilliams.decisiontree.base;
+
+/**
+ * Classes implementing ProbabilityPredictor can also predict how likely each label is,
+ * e.g. the fraction of a forest's trees voting for it. Probabilities are indexed by label
+ * id in the predictor's label dictionary and are written into arrays supplied by the
+ * caller, so predicting doesn't have to allocate.
+ */
+public interface ProbabilityPredictor extends Predictor {
+
+    /**
+     * Get the dictionary for the label ids that probabilities are indexed by
+     * @return the label dictionary
+     */
+    LabelDictionary getLabelDictionary();
+
+    /**
+     * Predict the probability of each label for the given row
+     * @param row - a row with features
+     * @param probabilities - array to store the probabilities in, indexed by label id; must
+     *                      have room for every label in the label dictionary
+     */
+    void predictProba(Row row, double[] probabilities);
+
+    /**
+     * Predict the probability of each label for all rows in a matrix
+     * @param matrix - rows with features
+     * @return the probabilities; label l of row i is at index i * number of labels + l
+     */
+    default double[] predictProba(Matrix matrix) {
+        double[] probabilities = new double[matrix.size() * getLabelDictionary().size()];
+        predictProba(matrix, 0, matrix.size(), probabilities);
+        return probabilities;
+    }
+
+    /**
+     * Predict the probability of each label for a block of rows in a matrix
+     * @param matrix - rows with features
+     * @param from - index of the first row to predict
+     * @param to - index after the last row to predict
+     * @param probabilities - array to store the probabilities in; label l of row i goes in
+     *                      probabilities[i * number of labels + l]
+     */
+    default void predictProba(Matrix matrix, int from, int to, double[] probabilities) {
+        int numLabels = getLabelDictionary().size();
+        double[] row = new double[numLabels];
+
+        for (int i = from; i < to; ++i) {
+            predictProba(matrix.get(i), row);
+            System.arraycopy(row, 0, probabilities, i * numLabels, numLabels);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A QuickScorerForest predicts with a random forest's trees using the QuickScorer
+ * algorithm, which finds every tree's exit leaf with bitwise ANDs instead of walking
+ * the trees. It predicts exactly the same labels and probabilities as the forest it was
+ * built from, and suits large forests of shallow trees, where walking is dominated by
+ * branches that can't be predicted.
+ *
+ * Each tree's leaves are numbered from left to right and the tree keeps a bitvector with
+ * one bit per leaf, all set to begin with. A row goes left at a node when its value is
+ * less than the node's threshold. Otherwise the node is "false" for the row and no leaf
+ * of its left subtree can be the exit leaf, so that subtree's bits are cleared. The
+ * nodes of all trees are sorted by threshold for each feature, so the false nodes for a
+ * row are found by scanning each feature's thresholds up to the row's value. The exit
+ * leaf of a tree is then the leftmost leaf whose bit is still set.
+ *
+ * Unlike walking a tree, QuickScorer reads every feature used anywhere in the forest,
+ * so rows must have all of those features. The forest is immutable and can be shared
+ * between threads.
+ *
+ * @author Matt Williams
+ */
+public class QuickScorerForest implements ProbabilityPredictor {
+
+    private static final ThreadLocal<long[]> BITVECTORS = ThreadLocal.withInitial(() -> new long[0]);
+
+    private final LabelDictionary labelDictionary;
+
+    private final int numTrees;
+
+    /**
+     * Index of each tree's first bitvector word; tree t's words end at treeWords[t + 1]
+     */
+    private final int[] treeWords;
+
+    /**
+     * Index of each tree's first leaf in leafLabels
+     */
+    private final int[] treeLeaves;
+
+    /**
+     * Label id of every leaf, tree by tree, from left to right
+     */
+    private final int[] leafLabels;
+
+    /**
+     * Every tree's bitvector before any false nodes are applied
+     */
+    private final long[] initialBitvectors;
+
+    /**
+     * Index of each feature's first node; feature f's nodes end at featureNodes[f + 1]
+     */
+    private final int[] featureNodes;
+
+    /**
+     * Threshold of each node, in ascending order for each feature
+     */
+    private final double[] thresholds;
+
+    /**
+     * Tree of each node
+     */
+    private final int[] nodeTrees;
+
+    /**
+     * First leaf of each node's left subtree, numbered within the node's tree
+     */
+    private final int[] leftFrom;
+
+    /**
+     * Leaf after the last leaf of each node's left subtree
+     */
+    private final int[] leftTo;
+
+    /**
+     * Build a QuickScorerForest from a random forest's trees
+     * @param forest - a random forest
+     */
+    public QuickScorerForest(RandomForest forest) {
+        this(forest.getTrees(), forest.getLabelDictionary());
+    }
+
+    /**
+     * Build a QuickScorerForest
+     * @param trees - trees
+     * @param labelDictionary - dictionary for the trees' leaf labels
+     */
+    public QuickScorerForest(List<TreeNode> trees, LabelDictionary labelDictionary) {
+        this.labelDictionary = labelDictionary;
+        this.numTrees = trees.size();
+
+        List<Condition> conditions = new ArrayList<>();
+        List<Integer> labels = new ArrayList<>();
+        this.treeWords = new int[numTrees + 1];
+        this.treeLeaves = new int[numTrees + 1];
+
+        for (int tree = 0; tree < numTrees; ++tree) {
+            treeLeaves[tree] = labels.size();
+            int numLeaves = addNodes(trees.get(tree), tree, 0, conditions, labels);
+            treeWords[tree + 1] = treeWords[tree] + (numLeaves + 63) / 64;
+        }
+        treeLeaves[numTrees] = labels.size();
+
+        this.leafLabels = new int[labels.size()];
+
+        for (int i = 0; i < leafLabels.length; ++i) {
+            leafLabels[i] = labels.get(i);
+        }
+
+        this.initialBitvectors = new long[treeWords[numTrees]];
+
+        for (int tree = 0; tree < numTrees; ++tree) {
+            setRange(initialBitvectors, treeWords[tree], 0, treeLeaves[tree + 1] - treeLeaves[tree]);
+        }
+
+        // A row never goes left at a NaN threshold, so those nodes are false for every row
+        List<Condition> comparable = new ArrayList<>(conditions.size());
+        int numFeatures = 0;
+
+        for (Condition condition : conditions) {
+
+            if (Double.isNaN(condition.threshold)) {
+                clearRange(initialBitvectors, treeWords[condition.tree], condition.leftFrom, condition.leftTo);
+            } else {
+                comparable.add(condition);
+                numFeatures = Math.max(numFeatures, condition.feature + 1);
+            }
+        }
+
+        Collections.sort(comparable, (a, b) -> a.feature != b.feature
+                ? Integer.compare(a.feature, b.feature)
+                : Double.compare(a.threshold, b.threshold));
+
+        int numNodes = comparable.size();
+        this.featureNodes = new int[numFeatures + 1];
+        this.thresholds = new double[numNodes];
+        this.nodeTrees = new int[numNodes];
+        this.leftFrom = new int[numNodes];
+        this.leftTo = new int[numNodes];
+
+        for (int i = 0; i < numNodes; ++i) {
+            Condition condition = comparable.get(i);
+            featureNodes[condition.feature + 1] = i + 1;
+            thresholds[i] = condition.threshold;
+            nodeTrees[i] = condition.tree;
+            leftFrom[i] = condition.leftFrom;
+            leftTo[i] = condition.leftTo;
+        }
+
+        // Features with no nodes end where the previous feature ends
+        for (int feature = 1; feature <= numFeatures; ++feature) {
+            featureNodes[feature] = Math.max(featureNodes[feature], featureNodes[feature - 1]);
+        }
+    }
+
+    @Override
+    public String predict(Row row) {
+        int bestLabel = predictLabelId(row);
+        return bestLabel < 0 ? "" : labelDictionary.label(bestLabel);
+    }
+
+    /**
+     * Predict the label id for the given row
+     * @param row - a row with features
+     * @return the id of the predicted label, or -1 if the forest has no labels
+     */
+    public int predictLabelId(Row row) {
+        int numLabels = labelDictionary.size();
+        long[] bitvectors = findExitLeaves(row);
+        int[] votes = Votes.counters(numLabels);
+
+        for (int tree = 0; tree < numTrees; ++tree) {
+            votes[exitLabel(bitvectors, tree)]++;
+        }
+        return Votes.winner(votes, numLabels);
+    }
+
+    @Override
+    public void predictProba(Row row, double[] probabilities) {
+        int numLabels = labelDictionary.size();
+        long[] bitvectors = findExitLeaves(row);
+        Arrays.fill(probabilities, 0, numLabels, 0);
+
+        for (int tree = 0; tree < numTrees; ++tree) {
+            probabilities[exitLabel(bitvectors, tree)]++;
+        }
+
+        if (numTrees > 0) {
+            double scale = 1.0 / numTrees;
+
+            for (int label = 0; label < numLabels; ++label) {
+                probabilities[label] *= scale;
+            }
+        }
+    }
+
+    @Override
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+
+    /**
+     * Return the number of trees in the forest
+     * @return the number of trees
+     */
+    public int numTrees() {
+        return numTrees;
+    }
+
+    /**
+     * Apply the false nodes of a row to this thread's copy of the trees' bitvectors
+     * @param row - a row with features
+     * @return the bitvectors, which are reused by the next call on the same thread
+     */
+    private long[] findExitLeaves(Row row) {
+        long[] bitvectors = BITVECTORS.get();
+
+        if (bitvectors.length < initialBitvectors.length) {
+            bitvectors = new long[initialBitvectors.length];
+            BITVECTORS.set(bitvectors);
+        }
+        System.arraycopy(initialBitvectors, 0, bitvectors, 0, initialBitvectors.length);
+
+        for (int feature = 0; feature < featureNodes.length - 1; ++feature) {
+            int node = featureNodes[feature];
+            int end = featureNodes[feature + 1];
+
+            if (node == end) {
+                continue;
+            }
+            double value = row.featureAt(feature);
+
+            // A NaN value never goes left, so every node is false
+            if (Double.isNaN(value)) {
+
+                for (; node < end; ++node) {
+                    clearRange(bitvectors, treeWords[nodeTrees[node]], leftFrom[node], leftTo[node]);
+                }
+                continue;
+            }
+
+            for (; node < end && thresholds[node] <= value; ++node) {
+                clearRange(bitvectors, treeWords[nodeTrees[node]], leftFrom[node], leftTo[node]);
+            }
+        }
+        return bitvectors;
+    }
+
+    /**
+     * Return the label of a tree's exit leaf, its leftmost leaf still set
+     */
+    private int exitLabel(long[] bitvectors, int tree) {
+
+        for (int word = treeWords[tree]; word < treeWords[tree + 1]; ++word) {
+
+            if (bitvectors[word] != 0) {
+                int leaf = (word - treeWords[tree]) * 64 + Long.numberOfTrailingZeros(bitvectors[word]);
+                return leafLabels[treeLeaves[tree] + leaf];
+            }
+        }
+        throw new IllegalStateException("Tree " + tree + " has no exit leaf");
+    }
+
+    /**
+     * Number a tree's leaves from left to right and record the left subtree of each node
+     * @return the number of leaves under the node
+     */
+    private int addNodes(TreeNode node, int tree, int firstLeaf, List<Condition> conditions, List<Integer> labels) {
+
+        if (node.isLeaf()) {
+            labels.add(labelDictionary.add(node.getLabel()));
+            return 1;
+        }
+        int leftLeaves = addNodes(node.getLeftNode(), tree, firstLeaf, conditions, labels);
+        conditions.add(new Condition(node.getFeatureIndex(), node.getValue(), tree, firstLeaf, firstLeaf + leftLeaves));
+        int rightLeaves = addNodes(node.getRightNode(), tree, firstLeaf + leftLeaves, conditions, labels);
+        return leftLeaves + rightLeaves;
+    }
+
+    /**
+     * Set bits from..to-1 of the bitvector starting at word base
+     */
+    private static void setRange(long[] bits, int base, int from, int to) {
+
+        for (int bit = from; bit < to; ++bit) {
+            bits[base + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Clear bits from..to-1 of the bitvector starting at word base
+     */
+    private static void clearRange(long[] bits, int base, int from, int to) {
+        int first = base + (from >>> 6);
+        int last = base + ((to - 1) >>> 6);
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+
+        if (first == last) {
+            bits[first] &= ~(firstMask & lastMask);
+        } else {
+            bits[first] &= ~firstMask;
+
+            for (int word = first + 1; word < last; ++word) {
+                bits[word] = 0;
+            }
+            bits[last] &= ~lastMask;
+        }
+    }
+
+    /**
+     * A node of a tree, used while building the forest
+     */
+    private static class Condition {
+
+        final int feature;
+        final double threshold;
+        final int tree;
+        final int leftFrom;
+        final int leftTo;
+
+        Condition(int feature, double threshold, int tree, int leftFrom, int leftTo) {
+            this.feature = feature;
+            this.threshold = threshold;
+            this.tree = tree;
+            this.leftFrom = leftFrom;
+            this.leftTo = leftTo;
+        }
+    }
+}
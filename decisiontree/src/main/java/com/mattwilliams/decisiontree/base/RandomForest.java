@@ -1,16 +1,20 @@
 package com.mattwilliams.decisiontree.base;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 /**
  * The RandomForest class represents a collection of
  * one or more decision trees that work together to make
  * a prediction (majority vote).
+ *
+ * Votes are counted by label id in a counter array reused by each thread. With early
+ * exit on, a prediction stops asking trees once no other label can catch up with the
+ * leading label, which gives the same answer as asking every tree.
  */
-public class RandomForest implements Predictor {
+public class RandomForest implements ProbabilityPredictor {
 
     /**
      * List of trees in the forest
@@ -18,11 +22,66 @@ public class RandomForest implements Predictor {
     private List<TreeNode> trees = new ArrayList<>();
 
     /**
-     * Add a tree to the forest
+     * Where each tree came from, null where it isn't known
+     */
+    private List<TreeProvenance> provenance = new ArrayList<>();
+
+    /**
+     * Dictionary for the label ids of the trees' leaves
+     */
+    private LabelDictionary labelDictionary;
+
+    /**
+     * Whether to stop counting votes once the winner is decided
+     */
+    private transient boolean earlyExit;
+
+    /**
+     * Number of times trees have been added or cleared, so caches can tell the model changed
+     */
+    private transient volatile long version;
+
+    /**
+     * Creates an empty forest with its own label dictionary
+     */
+    public RandomForest() {
+        this(new LabelDictionary());
+    }
+
+    /**
+     * Creates an empty forest whose trees' leaves use the given label dictionary, usually
+     * the dictionary of the training data
+     * @param labelDictionary - label dictionary
+     */
+    public RandomForest(LabelDictionary labelDictionary) {
+        this.labelDictionary = labelDictionary;
+    }
+
+    /**
+     * Add a tree to the forest. The label ids of the tree's leaves are set from
+     * this forest's label dictionary.
      * @param tree
      */
     public void addTree(TreeNode tree) {
+        addTree(tree, null);
+    }
+
+    /**
+     * Add a tree to the forest with a record of where it came from. The label ids of
+     * the tree's leaves are set from this forest's label dictionary.
+     * @param tree - the tree
+     * @param treeProvenance - where the tree came from, or null if it isn't known
+     */
+    public void addTree(TreeNode tree, TreeProvenance treeProvenance) {
+        encodeLabels(tree);
+
+        // Forests read from JSON written before provenance was kept have none for their trees
+        while (provenance.size() < trees.size()) {
+            provenance.add(null);
+        }
         trees.add(tree);
+        provenance.add(treeProvenance);
+        ++version;
     }
 
     /**
@@ -30,33 +89,174 @@ public class RandomForest implements Predictor {
      */
     public void clear() {
         trees.clear();
+        provenance.clear();
+        ++version;
+    }
+
+    /**
+     * Get where a tree came from
+     * @param tree - the index of the tree
+     * @return the tree's provenance, or null if it isn't known
+     */
+    public TreeProvenance getTreeProvenance(int tree) {
+
+        if (tree < 0 || tree >= trees.size()) {
+            throw new IndexOutOfBoundsException("No tree " + tree);
+        }
+        return tree < provenance.size() ? provenance.get(tree) : null;
     }
 
     @Override
-    public String predict(Row row) {
+    public long modelVersion() {
+        return version;
+    }
 
-        Map<String, Integer> votes = new HashMap<>();
+    /**
+     * Get the dictionary for the label ids of the trees' leaves
+     * @return the label dictionary
+     */
+    @Override
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+
+    /**
+     * Returns whether predictions stop counting votes once the winner is decided
+     * @return <code>true</code> if early exit is on
+     */
+    public boolean isEarlyExit() {
+        return earlyExit;
+    }
+
+    /**
+     * Sets whether predictions stop counting votes once no other label can catch up
+     * with the leading label. Predictions are the same either way.
+     * @param earlyExit - <code>true</code> to use early exit
+     */
+    public void setEarlyExit(boolean earlyExit) {
+        this.earlyExit = earlyExit;
+    }
+
+    /**
+     * Get the trees in the forest
+     * @return an unmodifiable list of trees
+     */
+    public List<TreeNode> getTrees() {
+        return Collections.unmodifiableList(trees);
+    }
+
+    /**
+     * Compact the forest's trees, collapsing redundant splits and sharing identical
+     * subtrees between all of them (see ForestCompactor). Predictions don't change, so
+     * the model version doesn't either.
+     * @return the compactor, with counts of the nodes and bytes saved
+     */
+    public ForestCompactor compact() {
+        ForestCompactor compactor = new ForestCompactor();
+
+        for (int i = 0; i < trees.size(); ++i) {
+            trees.set(i, compactor.compact(trees.get(i)));
+        }
+        return compactor;
+    }
+
+    /**
+     * Compile the forest's trees into flat arrays for faster prediction. The compiled
+     * forest predicts the same labels as this one, and doesn't change when this one does.
+     * @return the compiled forest
+     */
+    public CompiledForest compile() {
+        List<CompiledTree> compiled = new ArrayList<>(trees.size());
 
         for (TreeNode tree : trees) {
-            String label =  tree.predict(row);
+            compiled.add(CompiledTree.compile(tree, labelDictionary));
+        }
+        return new CompiledForest(compiled, labelDictionary, earlyExit);
+    }
+
+    @Override
+    public String predict(Row row) {
 
-            if (!votes.containsKey(label)) {
-                votes.put(label, 0);
+        int numLabels = labelDictionary.size();
+        int numTrees = trees.size();
+        int[] votes = Votes.counters(numLabels);
+        int leader = -1;
+
+        for (int i = 0; i < numTrees; ++i) {
+            int label = trees.get(i).predictLabelId(row);
+            votes[label]++;
+
+            if (earlyExit) {
+
+                if (leader < 0 || votes[label] > votes[leader]) {
+                    leader = label;
+                }
+
+                if (Votes.decided(votes, numLabels, leader, numTrees - i - 1)) {
+                    break;
+                }
             }
-            int count = votes.get(label);
-            votes.put(label, count + 1);
         }
 
-        String bestLabel = "";
-        int max = -1;
+        int bestLabel = Votes.winner(votes, numLabels);
+        return bestLabel < 0 ? "" : labelDictionary.label(bestLabel);
+    }
 
-        for (Map.Entry<String, Integer> entry : votes.entrySet()) {
+    /**
+     * Predict the fraction of trees voting for each label. Early exit doesn't apply, since
+     * every tree's vote is needed.
+     * @param row - a row with features
+     * @param probabilities - array to store the fractions in, indexed by label id
+     */
+    @Override
+    public void predictProba(Row row, double[] probabilities) {
+        int numLabels = labelDictionary.size();
+        Arrays.fill(probabilities, 0, numLabels, 0);
+
+        for (int i = 0; i < trees.size(); ++i) {
+            probabilities[trees.get(i).predictLabelId(row)]++;
+        }
+
+        if (!trees.isEmpty()) {
+            double scale = 1.0 / trees.size();
 
-            if (entry.getValue() > max) {
-                bestLabel = entry.getKey();
-                max = entry.getValue();
+            for (int label = 0; label < numLabels; ++label) {
+                probabilities[label] *= scale;
             }
         }
-        return bestLabel;
+    }
+
+    /**
+     * Predict the probabilities for a block of rows by compiling the forest first. To
+     * predict many blocks, compile the forest once and use the compiled forest instead.
+     */
+    @Override
+    public void predictProba(Matrix matrix, int from, int to, double[] probabilities) {
+        compile().predictProba(matrix, from, to, probabilities);
+    }
+
+    /**
+     * Predict a block of rows by compiling the forest first. To predict many blocks,
+     * compile the forest once and use the compiled forest instead.
+     */
+    @Override
+    public void predict(Matrix matrix, int from, int to, String[] labels) {
+        compile().predict(matrix, from, to, labels);
+    }
+
+    /**
+     * Set the label ids of a tree's leaves from this forest's label dictionary
+     * @param node - a tree
+     */
+    private void encodeLabels(TreeNode node) {
+
+        if (node == null) {
+            return;
+        } else if (node.isLeaf()) {
+            node.setLabelId(labelDictionary.add(node.getLabel()));
+        } else {
+            encodeLabels(node.getLeftNode());
+            encodeLabels(node.getRightNode());
+        }
     }
 }
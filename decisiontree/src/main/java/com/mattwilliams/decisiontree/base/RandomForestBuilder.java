@@ -1,30 +1,90 @@
 package com.mattwilliams.decisiontree.base;
 
-import com.mattwilliams.decisiontree.algorithms.RandomInfoGainStrategy;
+import com.mattwilliams.decisiontree.algorithms.BestSplitStrategy;
+import com.mattwilliams.decisiontree.algorithms.SplitCriterion;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
- * The RandomForestBuilder class grows a random forest
+ * The RandomForestBuilder class grows a random forest. Trees can be grown in parallel.
+ * Each tree gets its own random number generator, seeded from the forest's seed and the
+ * tree's index, so a forest grown from the same data and seed is the same no matter how
+ * many threads grow it. The seed of every tree is kept in the forest with the tree's
+ * other provenance (see RandomForest.getTreeProvenance).
+ *
+ * With a warm start forest set, training grows numTrees more trees onto a copy of that
+ * forest instead of starting from nothing. The new trees are numbered after the existing
+ * ones, so they get seeds of their own, and warm starting from the same forest with the
+ * same data and seed grows the same trees.
  */
 public class RandomForestBuilder implements Trainer {
 
     /**
-     * First possible classification label
+     * Number of trees to grow
      */
-    protected String label1;
+    protected int numTrees;
 
     /**
-     * Second possible classification label
+     * Whether trees are grown on presorted feature indices
      */
-    protected String label2;
+    protected boolean presorted;
 
     /**
-     * Number of trees to grow
+     * Seed that the trees' random number generators are derived from
      */
-    protected int numTrees;
+    protected long seed = new Random().nextLong();
+
+    /**
+     * Number of trees to grow at once, if no pool is set
+     */
+    protected int numThreads = 1;
+
+    /**
+     * Pool to grow trees in, or null to create one when numThreads > 1
+     */
+    protected ForkJoinPool pool;
+
+    /**
+     * Maximum depth of each tree (see DecisionTreeBuilder.setMaxDepth)
+     */
+    protected int maxDepth = Integer.MAX_VALUE;
+
+    /**
+     * Minimum number of rows to split a node (see DecisionTreeBuilder.setMinSamplesSplit)
+     */
+    protected int minSamplesSplit = 2;
+
+    /**
+     * Minimum number of rows on each side of a split (see DecisionTreeBuilder.setMinSamplesLeaf)
+     */
+    protected int minSamplesLeaf = 1;
+
+    /**
+     * Minimum gain of a split (see DecisionTreeBuilder.setMinGain)
+     */
+    protected double minGain = 0;
+
+    /**
+     * Measure used to choose splits
+     */
+    protected SplitCriterion splitCriterion = SplitCriterion.ENTROPY;
+
+    /**
+     * Whether to try every distinct threshold of each feature instead of just the median
+     */
+    protected boolean exhaustive;
+
+    /**
+     * Forest to add the new trees to, or null to grow a new forest
+     */
+    protected RandomForest warmStart;
 
     /**
      * How much training data should be used for the tree
@@ -34,39 +94,389 @@ public class RandomForestBuilder implements Trainer {
     /**
      * Creates a RandomForestBuilder
      * @param numTrees - number of trees to grow
-     * @param label1 - first classification label
-     * @param label2 - second classification label
      */
-    public RandomForestBuilder(int numTrees, String label1, String label2) {
-        this.label1 = label1;
-        this.label2 = label2;
+    public RandomForestBuilder(int numTrees) {
         this.numTrees = numTrees;
     }
 
+    /**
+     * Returns whether trees are grown on presorted feature indices
+     * @return <code>true</code> if presorted mode is on
+     * @see DecisionTreeBuilder#setPresorted(boolean)
+     */
+    public boolean isPresorted() {
+        return presorted;
+    }
+
+    /**
+     * Sets whether trees are grown on presorted feature indices
+     * @param presorted - <code>true</code> to use presorted mode
+     * @see DecisionTreeBuilder#setPresorted(boolean)
+     */
+    public void setPresorted(boolean presorted) {
+        this.presorted = presorted;
+    }
+
+    /**
+     * Get the seed that the trees' random number generators are derived from
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Set the seed that the trees' random number generators are derived from. Defaults
+     * to a random seed.
+     * @param seed - the seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Get the number of trees grown at once when no pool is set
+     * @return the number of threads
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Set the number of trees to grow at once. If more than 1, a ForkJoinPool with this
+     * parallelism is created for each call to train, unless a pool has been set.
+     * @param numThreads - the number of threads, 1 to grow trees one after another
+     */
+    public void setNumThreads(int numThreads) {
+
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least 1");
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set a pool to grow trees in, instead of creating one for each call to train
+     * @param pool - the pool, or null to go back to using numThreads
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Get the maximum depth of each tree
+     * @return the maximum depth
+     * @see DecisionTreeBuilder#setMaxDepth(int)
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Set the maximum depth of each tree
+     * @param maxDepth - the maximum depth, at least 0
+     * @see DecisionTreeBuilder#setMaxDepth(int)
+     */
+    public void setMaxDepth(int maxDepth) {
+
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Maximum depth can't be negative");
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Get the minimum number of rows needed to split a node
+     * @return the minimum number of rows to split
+     * @see DecisionTreeBuilder#setMinSamplesSplit(int)
+     */
+    public int getMinSamplesSplit() {
+        return minSamplesSplit;
+    }
+
+    /**
+     * Set the minimum number of rows needed to split a node
+     * @param minSamplesSplit - the minimum number of rows to split, at least 2
+     * @see DecisionTreeBuilder#setMinSamplesSplit(int)
+     */
+    public void setMinSamplesSplit(int minSamplesSplit) {
+
+        if (minSamplesSplit < 2) {
+            throw new IllegalArgumentException("Minimum rows to split must be at least 2");
+        }
+        this.minSamplesSplit = minSamplesSplit;
+    }
+
+    /**
+     * Get the minimum number of rows on each side of a split
+     * @return the minimum number of rows per leaf
+     * @see DecisionTreeBuilder#setMinSamplesLeaf(int)
+     */
+    public int getMinSamplesLeaf() {
+        return minSamplesLeaf;
+    }
+
+    /**
+     * Set the minimum number of rows on each side of a split
+     * @param minSamplesLeaf - the minimum number of rows per leaf, at least 1
+     * @see DecisionTreeBuilder#setMinSamplesLeaf(int)
+     */
+    public void setMinSamplesLeaf(int minSamplesLeaf) {
+
+        if (minSamplesLeaf < 1) {
+            throw new IllegalArgumentException("Minimum rows per leaf must be at least 1");
+        }
+        this.minSamplesLeaf = minSamplesLeaf;
+    }
+
+    /**
+     * Get the minimum gain of a split
+     * @return the minimum gain
+     * @see DecisionTreeBuilder#setMinGain(double)
+     */
+    public double getMinGain() {
+        return minGain;
+    }
+
+    /**
+     * Set the minimum gain of a split
+     * @param minGain - the minimum gain, at least 0
+     * @see DecisionTreeBuilder#setMinGain(double)
+     */
+    public void setMinGain(double minGain) {
+
+        if (!(minGain >= 0)) {
+            throw new IllegalArgumentException("Minimum gain can't be negative");
+        }
+        this.minGain = minGain;
+    }
+
+    /**
+     * Get the measure used to choose splits
+     * @return the split criterion
+     */
+    public SplitCriterion getSplitCriterion() {
+        return splitCriterion;
+    }
+
+    /**
+     * Set the measure used to choose splits. Defaults to ENTROPY. Either way each node
+     * evaluates a random subset of the features.
+     * @param splitCriterion - the split criterion
+     */
+    public void setSplitCriterion(SplitCriterion splitCriterion) {
+
+        if (splitCriterion == null) {
+            throw new IllegalArgumentException("Split criterion can't be null");
+        }
+        this.splitCriterion = splitCriterion;
+    }
+
+    /**
+     * Returns whether every distinct threshold of each feature is tried
+     * @return <code>true</code> if exhaustive mode is on
+     */
+    public boolean isExhaustive() {
+        return exhaustive;
+    }
+
+    /**
+     * Sets whether to try every distinct threshold of each feature instead of just the
+     * median. In exhaustive mode trees are grown on presorted features, whatever the
+     * presorted setting.
+     * @param exhaustive - <code>true</code> to use exhaustive mode
+     */
+    public void setExhaustive(boolean exhaustive) {
+        this.exhaustive = exhaustive;
+    }
+
+    /**
+     * Get the forest that training adds trees to
+     * @return the warm start forest, or null if training grows a new forest
+     */
+    public RandomForest getWarmStart() {
+        return warmStart;
+    }
+
+    /**
+     * Set a forest for training to add trees to, such as one loaded from disk. Training
+     * then returns a new forest with this forest's trees followed by numTrees new ones
+     * grown on the training data. The forest passed in isn't changed.
+     * @param warmStart - the forest to start from, or null to grow a new forest
+     */
+    public void setWarmStart(RandomForest warmStart) {
+        this.warmStart = warmStart;
+    }
+
     @Override
     public Predictor train(Matrix matrix) {
 
-        RandomForest randomForest = new RandomForest();
-        DecisionTreeBuilder treeBuilder = new DecisionTreeBuilder(label1, label2, new RandomInfoGainStrategy());
+        RandomForest randomForest = newForest(matrix);
+        int firstTree = randomForest.getTrees().size();
+        List<TreeNode> trees = growTrees(matrix, firstTree);
 
-        for (int i=0; i<numTrees; ++i) {
+        // Trees are collected in index order, so the forest doesn't depend on scheduling
+        for (int i = 0; i < trees.size(); ++i) {
+            randomForest.addTree(trees.get(i), newProvenance(matrix, firstTree + i));
+        }
+        return randomForest;
+    }
 
-            // Copy the rows in the original dataset
-            List<Row> rows = new ArrayList<>(matrix.rows());
+    /**
+     * Create the forest that new trees are added to: an empty forest using the training
+     * data's label dictionary, or a copy of the warm start forest whose label dictionary
+     * also has the training data's labels
+     * @param matrix - the training data
+     * @return the forest
+     */
+    protected RandomForest newForest(Matrix matrix) {
 
-            // Draw a random subset of the original rows
-            Collections.shuffle(rows);
-            int numRows = (int) (rows.size() * SUBSET);
+        if (warmStart == null) {
+            return new RandomForest(matrix.getLabelDictionary());
+        }
 
-            // Create a new matrix from the random subset
-            Matrix dataSubset = new Matrix();
-            for (int j=0; j<numRows; j++) {
-                dataSubset.addRow(rows.get(j));
+        // Existing labels keep their ids, so the existing trees' leaves don't change
+        LabelDictionary labelDictionary = new LabelDictionary();
+
+        for (String label : warmStart.getLabelDictionary().labels()) {
+            labelDictionary.add(label);
+        }
+
+        for (String label : matrix.getLabelDictionary().labels()) {
+            labelDictionary.add(label);
+        }
+        RandomForest forest = new RandomForest(labelDictionary);
+        forest.setEarlyExit(warmStart.isEarlyExit());
+        List<TreeNode> trees = warmStart.getTrees();
+
+        for (int i = 0; i < trees.size(); ++i) {
+            forest.addTree(trees.get(i), warmStart.getTreeProvenance(i));
+        }
+        return forest;
+    }
+
+    /**
+     * Create the provenance of a tree grown by this builder
+     * @param matrix - the training data
+     * @param tree - the index of the tree in the forest
+     * @return the tree's provenance
+     */
+    protected TreeProvenance newProvenance(Matrix matrix, int tree) {
+        return new TreeProvenance(treeSeed(tree), System.currentTimeMillis(), matrix.size(), getClass().getSimpleName());
+    }
+
+    /**
+     * Grow one tree of the forest. Each call uses its own tree builder and split strategy,
+     * so trees can be grown concurrently.
+     * @param matrix - the training data
+     * @param tree - the index of the tree in the forest
+     * @return the tree
+     */
+    protected TreeNode growTree(Matrix matrix, int tree) {
+        return growTree(matrix, new Random(treeSeed(tree)));
+    }
+
+    /**
+     * Grow a tree from a random number generator, such as one seeded with the seed in a
+     * tree's provenance
+     * @param matrix - the training data
+     * @param random - the tree's random number generator
+     * @return the tree
+     */
+    protected TreeNode growTree(Matrix matrix, Random random) {
+
+        // Draw a random subset of the original rows
+        int[] rows = new int[matrix.size()];
+
+        for (int i = 0; i < rows.length; ++i) {
+            rows[i] = i;
+        }
+
+        for (int i = rows.length - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int swap = rows[i];
+            rows[i] = rows[j];
+            rows[j] = swap;
+        }
+        int numRows = (int) (rows.length * SUBSET);
+
+        // View the random subset without copying it
+        Matrix dataSubset = matrix.subset(Arrays.copyOf(rows, numRows));
+
+        // Grow a tree using that subset
+        DecisionTreeBuilder treeBuilder = new DecisionTreeBuilder(newSplitStrategy(random));
+        treeBuilder.setPresorted(presorted);
+        treeBuilder.setMaxDepth(maxDepth);
+        treeBuilder.setMinSamplesSplit(minSamplesSplit);
+        treeBuilder.setMinSamplesLeaf(minSamplesLeaf);
+        treeBuilder.setMinGain(minGain);
+        return (TreeNode) treeBuilder.train(dataSubset);
+    }
+
+    /**
+     * Create the split strategy for one tree. Subclasses can override this to use a
+     * strategy other than those of the split criteria.
+     * @param random - the tree's random number generator
+     * @return a new split strategy
+     */
+    protected BestSplitStrategy newSplitStrategy(Random random) {
+        return splitCriterion.newStrategy(exhaustive, random);
+    }
+
+    /**
+     * Return the seed for a tree's random number generator
+     * @param tree - the index of the tree in the forest
+     * @return the tree's seed
+     */
+    protected long treeSeed(int tree) {
+        // Mix the forest seed and the tree index (MurmurHash3 finalizer)
+        long z = seed + (tree + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * Grow all trees, in parallel if a pool is set or numThreads > 1
+     * @param matrix - the training data
+     * @param firstTree - the index in the forest of the first tree to grow
+     * @return the trees, in index order
+     */
+    private List<TreeNode> growTrees(Matrix matrix, int firstTree) {
+        List<TreeNode> trees = new ArrayList<>(numTrees);
+
+        if (pool == null && numThreads == 1) {
+            for (int i = 0; i < numTrees; ++i) {
+                trees.add(growTree(matrix, firstTree + i));
             }
+            return trees;
+        }
+
+        List<Callable<TreeNode>> tasks = new ArrayList<>(numTrees);
 
-            // Grow a tree using that subset and add it to the forest
-            randomForest.addTree((TreeNode)treeBuilder.train(dataSubset));
+        for (int i = 0; i < numTrees; ++i) {
+            final int tree = firstTree + i;
+            tasks.add(() -> growTree(matrix, tree));
         }
-        return randomForest;
+        ForkJoinPool treePool = pool != null ? pool : new ForkJoinPool(numThreads);
+
+        try {
+            for (Future<TreeNode> future : treePool.invokeAll(tasks)) {
+                trees.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while growing trees", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to grow tree", e.getCause());
+        } finally {
+            if (treePool != pool) {
+                treePool.shutdown();
+            }
+        }
+        return trees;
     }
 }
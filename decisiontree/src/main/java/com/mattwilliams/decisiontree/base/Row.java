@@ -1,10 +1,11 @@
 package com.mattwilliams.decisiontree.base;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
- * A Row represents a particular sample of data
+ * A Row represents a particular sample of data. Rows returned by a
+ * {@link Matrix} are read-only views onto the matrix's columns.
  *
  * @author Matt Williams
  */
@@ -13,7 +14,12 @@ public class Row {
     /**
      * Features for this row
      */
-    private List<Double> features = new ArrayList<>();
+    private double[] features = new double[4];
+
+    /**
+     * Number of features added to this row
+     */
+    private int numFeatures;
 
     /**
      * Label for this row
@@ -26,7 +32,10 @@ public class Row {
      * @return the value of the feature at that index
      */
     public double featureAt(int index) {
-        return this.features.get(index);
+        if (index >= numFeatures) {
+            throw new IndexOutOfBoundsException("Feature index: " + index + ", Features: " + numFeatures);
+        }
+        return this.features[index];
     }
 
     /**
@@ -34,7 +43,10 @@ public class Row {
      * @param feature - the value of the feature
      */
     public void addFeature(double feature) {
-        this.features.add(feature);
+        if (numFeatures == features.length) {
+            features = Arrays.copyOf(features, numFeatures * 2);
+        }
+        this.features[numFeatures++] = feature;
     }
 
     /**
@@ -58,7 +70,7 @@ public class Row {
      * @return the number of features
      */
     public int numFeatures() {
-        return this.features.size();
+        return this.numFeatures;
     }
 
     /**
@@ -69,10 +81,10 @@ public class Row {
 
         ArrayList<String> string = new ArrayList<>();
 
-        for (double feature : features) {
-            string.add(String.valueOf(feature));
+        for (int i = 0; i < numFeatures(); ++i) {
+            string.add(String.valueOf(featureAt(i)));
         }
-        string.add(label);
+        string.add(getLabel());
         return String.join(",", string);
     }
 }
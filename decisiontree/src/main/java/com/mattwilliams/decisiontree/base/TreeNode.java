@@ -32,6 +32,11 @@ public class TreeNode implements Predictor {
      */
     private String label;
 
+    /**
+     * If this node is a leaf, the id of its label in the forest's label dictionary
+     */
+    private int labelId;
+
     /**
      * Returns whether or not this node is a leaf (has no children)
      * @return <code>true</code> if no children, otherwise <code>false</code>
@@ -108,6 +113,22 @@ public class TreeNode implements Predictor {
         return this.label;
     }
 
+    /**
+     * Return the id of this node's label in the label dictionary of the data it was trained on
+     * @return - the label id for this node
+     */
+    public int getLabelId() {
+        return labelId;
+    }
+
+    /**
+     * Set the id of this node's label in a label dictionary
+     * @param labelId - the label id for this node
+     */
+    public void setLabelId(int labelId) {
+        this.labelId = labelId;
+    }
+
     /**
      * Return the value for this node's feature
      * @return - the value for this node's feature
@@ -127,7 +148,9 @@ public class TreeNode implements Predictor {
     @Override
     public String predict(Row row) {
 
-        if (row.featureAt(featureIndex) < value) {
+        if (isLeaf()) {
+            return label;
+        } else if (row.featureAt(featureIndex) < value) {
 
             if (!leftNode.isLeaf()) {
                 return leftNode.predict(row);
@@ -145,4 +168,18 @@ public class TreeNode implements Predictor {
         }
     }
 
+    /**
+     * Predict the label id for the given row
+     * @param row - a row with features
+     * @return the id of the predicted label
+     */
+    public int predictLabelId(Row row) {
+        TreeNode node = this;
+
+        while (!node.isLeaf()) {
+            node = row.featureAt(node.featureIndex) < node.value ? node.leftNode : node.rightNode;
+        }
+        return node.labelId;
+    }
+
 }
@@ -0,0 +1,72 @@
+package com.mattwilliams.decisiontree.base;
+
+/**
+ * The TreeProvenance class records where a tree in a forest came from: the seed of the
+ * random number generator it was grown with, when it was grown, how many rows it was
+ * trained on and which trainer grew it. A tree can be grown again from its seed and the
+ * same training data and settings.
+ *
+ * @author Matt Williams
+ */
+public final class TreeProvenance {
+
+    private final long seed;
+
+    private final long trainedAt;
+
+    private final int numRows;
+
+    private final String trainer;
+
+    /**
+     * Creates a TreeProvenance
+     * @param seed - the seed of the tree's random number generator
+     * @param trainedAt - when the tree was grown, in milliseconds since the epoch
+     * @param numRows - the number of rows in the training data
+     * @param trainer - the name of the trainer that grew the tree
+     */
+    public TreeProvenance(long seed, long trainedAt, int numRows, String trainer) {
+        this.seed = seed;
+        this.trainedAt = trainedAt;
+        this.numRows = numRows;
+        this.trainer = trainer;
+    }
+
+    /**
+     * Get the seed of the random number generator the tree was grown with
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Get when the tree was grown
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTrainedAt() {
+        return trainedAt;
+    }
+
+    /**
+     * Get the number of rows in the data the tree was trained on, before the random
+     * subset for the tree was drawn
+     * @return the number of rows
+     */
+    public int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * Get the name of the trainer that grew the tree
+     * @return the trainer's name
+     */
+    public String getTrainer() {
+        return trainer;
+    }
+
+    @Override
+    public String toString() {
+        return trainer + " seed " + seed + " on " + numRows + " rows at " + trainedAt;
+    }
+}
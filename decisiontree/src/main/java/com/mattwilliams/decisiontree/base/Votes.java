@@ -0,0 +1,79 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for counting the votes of a forest's trees by label id. Each thread reuses
+ * one counter array, so voting doesn't allocate.
+ *
+ * @author Matt Williams
+ */
+final class Votes {
+
+    private static final ThreadLocal<int[]> COUNTERS = ThreadLocal.withInitial(() -> new int[8]);
+
+    private Votes() {
+    }
+
+    /**
+     * Return this thread's counter array, cleared for the given number of labels. The
+     * array is reused by the next call on the same thread.
+     * @param numLabels - number of labels to count
+     * @return an array with at least numLabels zeroed counts
+     */
+    static int[] counters(int numLabels) {
+        int[] votes = COUNTERS.get();
+
+        if (votes.length < numLabels) {
+            votes = new int[Math.max(numLabels, votes.length * 2)];
+            COUNTERS.set(votes);
+        } else {
+            Arrays.fill(votes, 0, numLabels, 0);
+        }
+        return votes;
+    }
+
+    /**
+     * Return the label with the most votes, preferring the lowest label id on a tie
+     * @param votes - vote counts by label id
+     * @param numLabels - number of labels
+     * @return the winning label id, or -1 if there are no labels
+     */
+    static int winner(int[] votes, int numLabels) {
+        int bestLabel = -1;
+        int max = -1;
+
+        for (int label = 0; label < numLabels; ++label) {
+
+            if (votes[label] > max) {
+                bestLabel = label;
+                max = votes[label];
+            }
+        }
+        return bestLabel;
+    }
+
+    /**
+     * Returns whether a label has won, even if every remaining vote goes to another label
+     * @param votes - vote counts by label id
+     * @param numLabels - number of labels
+     * @param leader - the label with the most votes so far
+     * @param remaining - number of votes still to count
+     * @return <code>true</code> if no other label can catch up with the leader
+     */
+    static boolean decided(int[] votes, int numLabels, int leader, int remaining) {
+        int lead = votes[leader];
+
+        if (lead <= remaining) {
+            return false;
+        }
+
+        for (int label = 0; label < numLabels; ++label) {
+
+            if (label != leader && votes[label] + remaining >= lead) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,12 +1,15 @@
 package com.mattwilliams.decisiontree.base.mapreduce;
 
-import com.google.gson.Gson;
-import com.mattwilliams.decisiontree.algorithms.RandomInfoGainStrategy;
+import com.mattwilliams.decisiontree.algorithms.SplitCriterion;
 import com.mattwilliams.decisiontree.base.*;
+import com.mattwilliams.decisiontree.io.ForestReader;
+import com.mattwilliams.decisiontree.io.ForestWriter;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
@@ -14,16 +17,18 @@ import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 
 import java.io.*;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
  * The MRForestBuilder class builds a random forest model using
- * Hadoop MapReduce functionality.
+ * Hadoop MapReduce functionality. Training throws an IllegalStateException
+ * if the job fails or doesn't grow every tree, rather than returning a
+ * partial forest.
  */
 public class MRForestBuilder extends RandomForestBuilder {
 
@@ -36,17 +41,16 @@ public class MRForestBuilder extends RandomForestBuilder {
      * Creates a MRForestBuilder
      *
      * @param numTrees - number of trees to grow
-     * @param label1   - first classification label
-     * @param label2   - second classification label
      */
-    public MRForestBuilder(int numTrees, String label1, String label2) {
-        super(numTrees, label1, label2);
+    public MRForestBuilder(int numTrees) {
+        super(numTrees);
     }
 
     @Override
     public Predictor train(Matrix matrix) {
 
-        RandomForest randomForest = new RandomForest();
+        RandomForest randomForest = newForest(matrix);
+        int firstTree = randomForest.getTrees().size();
 
         try {
             Configuration conf = getConfiguration();
@@ -60,26 +64,47 @@ public class MRForestBuilder extends RandomForestBuilder {
             // Step 2: Create a file on HDFS with a path to this input file, repeated
             // once for however many trees are being grown. The idea is to use NLineInputFormat
             // to feed each mapper the path to the input file, and let the Mapper read it and
-            // grow a tree. In this way we make sure that # of Mappers = # of trees:
+            // grow a tree. In this way we make sure that # of Mappers = # of trees. Each line
+            // starts with the tree's index so the Mapper can seed the tree the same way
+            // RandomForestBuilder does. When warm starting, the new trees are numbered after
+            // the existing ones:
             ArrayList<String> filenames = new ArrayList<>();
 
             for (int i=0; i<numTrees; ++i) {
-                filenames.add(treeFile);
+                filenames.add((firstTree + i) + "\t" + treeFile);
             }
             String filelist = String.join(System.lineSeparator(), filenames);
             writeHdfsFile(keyFile, filelist, conf);
 
-            // Step 3: Run the MapReduce job
+            // Step 3: Run the MapReduce job. Hadoop won't write over an existing output
+            // directory, so the output of the last run is deleted first:
+            deleteHdfsPath(outputPath, conf);
             Job job = getJob(conf);
-            job.waitForCompletion(true);
 
-            // Step 4: Find the output file and deserialize it back into a RandomForest
-            String json = readHdfsFile("/users/matt/output/part-r-00000", conf).get(0);
-            Gson gson = new Gson();
-            randomForest = gson.fromJson(json, RandomForest.class);
+            if (!job.waitForCompletion(true)) {
+                throw new IllegalStateException("MapReduce job " + jobName + " failed");
+            }
+
+            // Step 4: Find the output file and deserialize it back into a RandomForest. The
+            // trees and their provenance are added to the matrix's forest, or to the copy of
+            // the warm start forest:
+            RandomForest trained = readForest(new Path(outputPath, "part-r-00000"), conf);
+            List<TreeNode> trees = trained.getTrees();
+
+            if (trees.size() != numTrees) {
+                throw new IllegalStateException("MapReduce job " + jobName + " grew " + trees.size()
+                        + " trees instead of " + numTrees);
+            }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+            for (int i = 0; i < trees.size(); ++i) {
+                randomForest.addTree(trees.get(i), trained.getTreeProvenance(i));
+            }
+
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Failed to grow the forest with MapReduce", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while growing the forest with MapReduce", e);
         }
         return randomForest;
 
@@ -100,6 +125,17 @@ public class MRForestBuilder extends RandomForestBuilder {
         writer.close();
     }
 
+    /**
+     * Utility method for deleting a file or directory on HDFS, if it exists
+     * @param path - file or directory to delete
+     * @param conf - Hadoop configuration
+     * @throws IOException
+     */
+    private static void deleteHdfsPath(String path, Configuration conf) throws IOException {
+        FileSystem fs = FileSystem.get(URI.create(path), conf);
+        fs.delete(new Path(path), true);
+    }
+
     /**
      * Utility method for reading a file on HDFS
      * @param path - file to read
@@ -117,13 +153,34 @@ public class MRForestBuilder extends RandomForestBuilder {
         return contents;
     }
 
-    private static class TreeMapper extends Mapper<Object, Text, Object, Text> {
+    /**
+     * Utility method for reading the forest written by the reducer
+     * @param path - the reducer's output file
+     * @param conf - Hadoop configuration
+     * @return - the forest
+     * @throws IOException
+     */
+    private static RandomForest readForest(Path path, Configuration conf) throws IOException {
+
+        try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path))) {
+            BytesWritable value = new BytesWritable();
+
+            if (!reader.next(NullWritable.get(), value)) {
+                throw new IOException("No forest in " + path);
+            }
+            return ForestReader.fromBytes(value.getBytes(), value.getLength());
+        }
+    }
+
+    private static class TreeMapper extends Mapper<Object, Text, Object, BytesWritable> {
         @Override
         protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
             Configuration conf = context.getConfiguration();
-            String file = value.toString(); // This is the input feature file, tree.txt
+            String[] line = value.toString().split("\t");
+            int treeIndex = Integer.parseInt(line[0]);
+            String file = line[1]; // This is the input feature file, tree.txt
             List<String> inputFileRows = readHdfsFile(file, conf);
-            ArrayList<Row> matrixRows = new ArrayList<>();
+            Matrix matrix = new Matrix();
 
             // Read all the feature rows
             for (String inputDataRow : inputFileRows) {
@@ -134,42 +191,45 @@ public class MRForestBuilder extends RandomForestBuilder {
                 row.addFeature(Double.parseDouble(inputData[2]));
                 row.addFeature(Double.parseDouble(inputData[3]));
                 row.setLabel(inputData[4]);
-                matrixRows.add(row);
-            }
-
-            // Draw a random subset of the original rows
-            Collections.shuffle(matrixRows);
-            int numRows = (int) (matrixRows.size() * SUBSET);
-
-            // Create a new matrix from the random subset
-            Matrix dataSubset = new Matrix();
-            for (int j=0; j<numRows; j++) {
-                dataSubset.addRow(matrixRows.get(j));
+                matrix.addRow(row);
             }
 
-            // Create a tree
-            DecisionTreeBuilder treeBuilder = new DecisionTreeBuilder(conf.get("abd5.label1"), conf.get("abd5.label2"),
-                    new RandomInfoGainStrategy());
-            TreeNode tree = (TreeNode)treeBuilder.train(dataSubset);
+            // Grow the tree the same way RandomForestBuilder would
+            MRForestBuilder builder = new MRForestBuilder(1);
+            builder.setSeed(conf.getLong("abd5.seed", 0));
+            builder.setPresorted(conf.getBoolean("abd5.presorted", false));
+            builder.setMaxDepth(conf.getInt("abd5.maxDepth", Integer.MAX_VALUE));
+            builder.setMinSamplesSplit(conf.getInt("abd5.minSamplesSplit", 2));
+            builder.setMinSamplesLeaf(conf.getInt("abd5.minSamplesLeaf", 1));
+            builder.setMinGain(conf.getDouble("abd5.minGain", 0));
+            builder.setSplitCriterion(SplitCriterion.valueOf(conf.get("abd5.splitCriterion", SplitCriterion.ENTROPY.name())));
+            builder.setExhaustive(conf.getBoolean("abd5.exhaustive", false));
+            TreeNode tree = builder.growTree(matrix, treeIndex);
 
-            // Serialize the tree to JSON and store it as mapper output
-            Gson gson = new Gson();
-            String json = gson.toJson(tree);
-            context.write(NullWritable.get(), new Text(json));
+            // Serialize the tree and its provenance in the binary model format and store it
+            // as mapper output
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ForestWriter writer = new ForestWriter(bytes, matrix.getLabelDictionary());
+            writer.writeTree(tree, builder.newProvenance(matrix, treeIndex));
+            writer.finish();
+            context.write(NullWritable.get(), new BytesWritable(bytes.toByteArray()));
         }
     }
 
-    private static class ForestReducer extends Reducer<Object, Text, Object, Text> {
+    private static class ForestReducer extends Reducer<Object, BytesWritable, Object, BytesWritable> {
         @Override
-        protected void reduce(Object key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+        protected void reduce(Object key, Iterable<BytesWritable> values, Context context) throws IOException, InterruptedException {
             RandomForest forest = new RandomForest();
-            Gson gson = new Gson();
 
-            for (Text text : values) {
-                TreeNode tree = gson.fromJson(text.toString(), TreeNode.class);
-                forest.addTree(tree);
+            for (BytesWritable value : values) {
+                RandomForest mapped = ForestReader.fromBytes(value.getBytes(), value.getLength());
+                List<TreeNode> trees = mapped.getTrees();
+
+                for (int i = 0; i < trees.size(); ++i) {
+                    forest.addTree(trees.get(i), mapped.getTreeProvenance(i));
+                }
             }
-            context.write(NullWritable.get(), new Text(gson.toJson(forest)));
+            context.write(NullWritable.get(), new BytesWritable(ForestWriter.toBytes(forest)));
         }
     }
 
@@ -181,9 +241,15 @@ public class MRForestBuilder extends RandomForestBuilder {
         conf.addResource(new Path("/usr/local/Cellar/hadoop/2.8.2/libexec/etc/hadoop/core-site.xml"));
         conf.addResource(new Path("/usr/local/Cellar/hadoop/2.8.2/libexec/etc/hadoop/mapred-site.xml"));
 
-        // Label values so that the Mapper can get to them
-        conf.set("abd5.label1", label1);
-        conf.set("abd5.label2", label2);
+        // Tree settings so that the Mapper can get to them
+        conf.setBoolean("abd5.presorted", presorted);
+        conf.setLong("abd5.seed", seed);
+        conf.setInt("abd5.maxDepth", maxDepth);
+        conf.setInt("abd5.minSamplesSplit", minSamplesSplit);
+        conf.setInt("abd5.minSamplesLeaf", minSamplesLeaf);
+        conf.setDouble("abd5.minGain", minGain);
+        conf.set("abd5.splitCriterion", splitCriterion.name());
+        conf.setBoolean("abd5.exhaustive", exhaustive);
 
         // This makes sure that each Mapper will get a single line of text, which will be
         // the path to the input feature matrix file on HDFS
@@ -197,7 +263,8 @@ public class MRForestBuilder extends RandomForestBuilder {
         job.setReducerClass(ForestReducer.class);
         job.setJarByClass(MRForestBuilder.class);
         job.setOutputKeyClass(NullWritable.class);
-        job.setOutputValueClass(Text.class);
+        job.setOutputValueClass(BytesWritable.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
         job.setInputFormatClass(NLineInputFormat.class); // Makes sure Mappers get only 1 line
         FileInputFormat.addInputPath(job, new Path(keyFile));
         FileOutputFormat.setOutputPath(job, new Path(outputPath));
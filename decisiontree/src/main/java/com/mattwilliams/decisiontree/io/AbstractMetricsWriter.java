@@ -1,27 +1,27 @@
 package com.mattwilliams.decisiontree.io;
 
-import java.util.ArrayList;
-import java.util.List;
+import com.mattwilliams.decisiontree.base.ConfusionMatrix;
 
 /**
  * The AbstractMetricsWriter class keeps track of prediction results
- * and can write them to a repository (filesystem or database)
+ * and can write them to a repository (filesystem or database).
+ *
+ * Samples can be added from several threads. To score in parallel, count each thread's
+ * outcomes in its own ConfusionMatrix and add them with addSamples when done.
+ * Implementations of writeMetrics should be synchronized, so they don't read the
+ * outcomes while samples are being added.
  */
 public abstract class AbstractMetricsWriter {
 
     /**
-     * Actual labels
+     * Prediction outcomes
      */
-    protected List<String> actuals = new ArrayList<>();
-
-    /**
-     * Predicted labels
-     */
-    protected List<String> predictions = new ArrayList<>();
+    protected final ConfusionMatrix confusionMatrix = new ConfusionMatrix();
 
 
     /**
-     * Writes a description of the accuracy of the predictions to a data store
+     * Writes a description of the accuracy of the predictions to a data store. Must hold
+     * this writer's lock while reading the outcomes.
      */
     public abstract void writeMetrics();
 
@@ -31,17 +31,24 @@ public abstract class AbstractMetricsWriter {
      * @param actual     - the actual (expected) value
      * @param prediction - the predicted value
      */
-    public void addSample(String actual, String prediction) {
-        actuals.add(actual);
-        predictions.add(prediction);
+    public synchronized void addSample(String actual, String prediction) {
+        confusionMatrix.add(actual, prediction);
+    }
+
+    /**
+     * Add prediction outcomes counted elsewhere, e.g. by a ParallelScorer
+     *
+     * @param samples - the outcomes
+     */
+    public synchronized void addSamples(ConfusionMatrix samples) {
+        confusionMatrix.merge(samples);
     }
 
     /**
-     * Clears all predictions in this CassandraMetricsWriter
+     * Clears all predictions in this MetricsWriter
      */
-    public void clear() {
-        actuals.clear();
-        predictions.clear();
+    public synchronized void clear() {
+        confusionMatrix.clear();
     }
 
 }
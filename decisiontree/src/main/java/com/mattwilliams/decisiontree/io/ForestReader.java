@@ -0,0 +1,345 @@
+package com.mattwilliams.decisiontree.io;
+
+import com.mattwilliams.decisiontree.base.LabelDictionary;
+import com.mattwilliams.decisiontree.base.RandomForest;
+import com.mattwilliams.decisiontree.base.TreeNode;
+import com.mattwilliams.decisiontree.base.TreeProvenance;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The ForestReader reads trees written by ForestWriter, one tree at a time. Each tree's
+ * checksum is verified before the tree is returned. Subtrees that were shared when they
+ * were written are shared again, within a tree and across trees read by the same reader.
+ *
+ * @author Matt Williams
+ */
+public class ForestReader implements Closeable {
+
+    private final InputStream in;
+
+    private final int formatVersion;
+
+    private final LabelDictionary labelDictionary;
+
+    /**
+     * Payload of the tree being read
+     */
+    private byte[] tree = new byte[1024];
+
+    private int position;
+
+    private int length;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Every split read, numbered as the writer numbered them
+     */
+    private final List<TreeNode> splits = new ArrayList<>();
+
+    /**
+     * Provenance of the last tree read
+     */
+    private TreeProvenance provenance;
+
+    private int numTrees;
+
+    private boolean finished;
+
+    /**
+     * Creates a ForestReader and reads the header
+     * @param in - stream to read from; closed when the reader is closed
+     * @throws IOException if the header can't be read or isn't in the binary model format
+     */
+    public ForestReader(InputStream in) throws IOException {
+        this.in = in;
+
+        for (byte b : ForestWriter.MAGIC) {
+
+            if (readByte() != (b & 0xFF)) {
+                throw new IOException("Not a binary model");
+            }
+        }
+        formatVersion = readVarint();
+
+        if (formatVersion < 1 || formatVersion > ForestWriter.FORMAT_VERSION) {
+            throw new IOException("Unsupported model format version " + formatVersion);
+        }
+        labelDictionary = new LabelDictionary();
+        int numLabels = readVarint();
+
+        for (int i = 0; i < numLabels; ++i) {
+            byte[] bytes = new byte[readVarint()];
+            readFully(bytes, bytes.length);
+            labelDictionary.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Get the dictionary for the trees' leaf labels
+     * @return the label dictionary
+     */
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+
+    /**
+     * Get the format version the model was written with
+     * @return the format version
+     */
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    /**
+     * Read the next tree. Its leaves' label ids are set from the label dictionary, and
+     * its provenance is returned by getTreeProvenance until the next tree is read.
+     * @return the root of the tree, or null if there are no more trees
+     * @throws IOException if the tree can't be read or its checksum doesn't match
+     */
+    public TreeNode readTree() throws IOException {
+
+        provenance = null;
+
+        if (finished) {
+            return null;
+        }
+        length = readVarint();
+
+        if (length == 0) {
+            finished = true;
+            return null;
+        }
+
+        if (tree.length < length) {
+            tree = new byte[Math.max(length, tree.length * 2)];
+        }
+        readFully(tree, length);
+        int checksum = readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+
+        crc.reset();
+        crc.update(tree, 0, length);
+
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch in tree " + numTrees);
+        }
+        position = 0;
+
+        if (formatVersion >= 3) {
+            provenance = readProvenance();
+        }
+        TreeNode root = readNode();
+
+        if (position != length) {
+            throw new IOException("Unexpected data after tree " + numTrees);
+        }
+        numTrees++;
+        return root;
+    }
+
+    /**
+     * Get where the last tree read came from
+     * @return the tree's provenance, or null if it wasn't written with the tree
+     */
+    public TreeProvenance getTreeProvenance() {
+        return provenance;
+    }
+
+    /**
+     * Close the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Read a forest from a stream, leaving the stream open
+     * @param in - stream to read from
+     * @return the forest, with the label dictionary it was written with
+     * @throws IOException if the forest can't be read
+     */
+    public static RandomForest read(InputStream in) throws IOException {
+        ForestReader reader = new ForestReader(in);
+        RandomForest forest = new RandomForest(reader.getLabelDictionary());
+        TreeNode tree;
+
+        while ((tree = reader.readTree()) != null) {
+            forest.addTree(tree, reader.getTreeProvenance());
+        }
+        return forest;
+    }
+
+    /**
+     * Load a forest from a file
+     * @param file - a file written by ForestWriter.save
+     * @return the forest
+     * @throws IOException if the forest can't be read
+     */
+    public static RandomForest load(Path file) throws IOException {
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Decode a forest from bytes
+     * @param bytes - a forest encoded by ForestWriter.toBytes
+     * @param length - number of bytes in use
+     * @return the forest
+     * @throws IOException if the bytes aren't a valid forest
+     */
+    public static RandomForest fromBytes(byte[] bytes, int length) throws IOException {
+        return read(new ByteArrayInputStream(bytes, 0, length));
+    }
+
+    private TreeProvenance readProvenance() throws IOException {
+        int tag = nextVarint();
+
+        if (tag == 0) {
+            return null;
+        } else if (tag != 1) {
+            throw new IOException("Bad provenance in tree " + numTrees);
+        }
+        long seed = nextLong();
+        long trainedAt = nextLong();
+        int numRows = nextVarint();
+        int trainerLength = nextVarint();
+
+        if (trainerLength < 0 || trainerLength > length - position) {
+            throw new IOException("Truncated tree " + numTrees);
+        }
+        String trainer = new String(tree, position, trainerLength, StandardCharsets.UTF_8);
+        position += trainerLength;
+        return new TreeProvenance(seed, trainedAt, numRows, trainer);
+    }
+
+    private TreeNode readNode() throws IOException {
+        int tag = nextVarint();
+        int firstFeatureTag = formatVersion == 1 ? 1 : 2;
+
+        if (tag == 1 && firstFeatureTag == 2) {
+            int split = nextVarint();
+
+            if (split >= splits.size()) {
+                throw new IOException("Bad subtree reference " + split + " in tree " + numTrees);
+            }
+            return splits.get(split);
+        }
+        TreeNode node = new TreeNode();
+
+        if (tag == 0) {
+            int labelId = nextVarint();
+
+            if (labelId >= labelDictionary.size()) {
+                throw new IOException("Bad label id " + labelId + " in tree " + numTrees);
+            }
+            node.setLabel(labelDictionary.label(labelId));
+            node.setLabelId(labelId);
+        } else {
+            node.setFeatureIndex(tag - firstFeatureTag);
+            node.setValue(Double.longBitsToDouble(nextLong()));
+            node.setLeftNode(readNode());
+            node.setRightNode(readNode());
+            splits.add(node);
+        }
+        return node;
+    }
+
+    /**
+     * Read a varint from the tree payload
+     */
+    private int nextVarint() throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = nextByte();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint in tree " + numTrees);
+    }
+
+    /**
+     * Read a big-endian long from the tree payload
+     */
+    private long nextLong() throws IOException {
+
+        if (position + 8 > length) {
+            throw new IOException("Truncated tree " + numTrees);
+        }
+        long value = 0;
+
+        for (int i = 0; i < 8; ++i) {
+            value = value << 8 | (tree[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    private int nextByte() throws IOException {
+
+        if (position >= length) {
+            throw new IOException("Truncated tree " + numTrees);
+        }
+        return tree[position++] & 0xFF;
+    }
+
+    /**
+     * Read a varint from the stream
+     */
+    private int readVarint() throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+
+                if (value < 0) {
+                    throw new IOException("Bad length " + (value & 0xFFFFFFFFL));
+                }
+                return value;
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+
+        if (b < 0) {
+            throw new EOFException("Unexpected end of model");
+        }
+        return b;
+    }
+
+    private void readFully(byte[] bytes, int count) throws IOException {
+        int read = 0;
+
+        while (read < count) {
+            int n = in.read(bytes, read, count - read);
+
+            if (n < 0) {
+                throw new EOFException("Unexpected end of model");
+            }
+            read += n;
+        }
+    }
+}
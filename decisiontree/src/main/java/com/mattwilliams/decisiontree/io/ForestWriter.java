@@ -0,0 +1,325 @@
+package com.mattwilliams.decisiontree.io;
+
+import com.mattwilliams.decisiontree.base.LabelDictionary;
+import com.mattwilliams.decisiontree.base.RandomForest;
+import com.mattwilliams.decisiontree.base.TreeNode;
+import com.mattwilliams.decisiontree.base.TreeProvenance;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The ForestWriter writes trees in the binary model format, one tree at a time, so a
+ * forest never has to be held in memory as text. ForestReader reads them back.
+ *
+ * The format is:
+ * <pre>
+ *   magic "RFBM", format version (varint)
+ *   number of labels (varint), then each label as its length (varint) and UTF-8 bytes
+ *   for each tree: payload length (varint), payload, CRC32 of the payload (4 bytes)
+ *   0 (varint), marking the end of the trees
+ * </pre>
+ * A tree's payload starts with its provenance (see TreeProvenance): 0 if it isn't known,
+ * otherwise 1 followed by the tree's seed and the time it was grown (8 bytes each,
+ * big-endian), the number of training rows (varint) and the trainer's name (length as a
+ * varint, then UTF-8 bytes). The tree's nodes follow. They are listed depth first, each node before its left subtree and
+ * its left subtree before its right. A leaf is 0 followed by its label's id in the label
+ * dictionary (varint). A split is its feature index + 2 (varint) followed by its
+ * threshold as a raw IEEE 754 double (8 bytes, big-endian). Integers are written as
+ * unsigned LEB128 varints, so small feature indexes and label ids take one byte.
+ *
+ * Splits are numbered across the whole forest in the order their subtrees are finished.
+ * A subtree shared with one already written, as in a compacted forest (see
+ * RandomForest.compact), is written as 1 followed by the number of its split (varint),
+ * and is read back as the same shared subtree. Version 1 of the format has no shared
+ * subtrees and writes a split's feature index + 1. Versions 1 and 2 have no provenance.
+ *
+ * @author Matt Williams
+ */
+public class ForestWriter implements Closeable {
+
+    /**
+     * First bytes of every file in this format
+     */
+    static final byte[] MAGIC = {'R', 'F', 'B', 'M'};
+
+    /**
+     * Version of the format written by this class
+     */
+    public static final int FORMAT_VERSION = 3;
+
+    private final OutputStream out;
+
+    private final LabelDictionary labelDictionary;
+
+    /**
+     * Buffer for the tree being written
+     */
+    private final Buffer tree = new Buffer();
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Number of every split written, for writing shared subtrees as references
+     */
+    private final Map<TreeNode, Integer> splits = new IdentityHashMap<>();
+
+    /**
+     * Numbers of the splits in the tree being written, added to splits once the tree
+     * has been written, so a tree that fails to write is never referred to
+     */
+    private final Map<TreeNode, Integer> treeSplits = new IdentityHashMap<>();
+
+    private int numTrees;
+
+    private boolean closed;
+
+    /**
+     * Creates a ForestWriter and writes the header
+     * @param out - stream to write to; closed when the writer is closed
+     * @param labelDictionary - dictionary for the trees' leaf labels; every tree written
+     *                        must use only labels in it
+     * @throws IOException if the header can't be written
+     */
+    public ForestWriter(OutputStream out, LabelDictionary labelDictionary) throws IOException {
+        this.out = out;
+        this.labelDictionary = labelDictionary;
+
+        Buffer header = new Buffer();
+        header.write(MAGIC, 0, MAGIC.length);
+        header.writeVarint(FORMAT_VERSION);
+        header.writeVarint(labelDictionary.size());
+
+        for (String label : labelDictionary.labels()) {
+            byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+            header.writeVarint(bytes.length);
+            header.write(bytes, 0, bytes.length);
+        }
+        header.writeTo(out);
+    }
+
+    /**
+     * Write a tree without provenance
+     * @param root - the root of the tree
+     * @throws IOException if the tree can't be written
+     * @throws IllegalArgumentException if a leaf's label isn't in the label dictionary
+     */
+    public void writeTree(TreeNode root) throws IOException {
+        writeTree(root, null);
+    }
+
+    /**
+     * Write a tree and where it came from
+     * @param root - the root of the tree
+     * @param provenance - the tree's provenance, or null if it isn't known
+     * @throws IOException if the tree can't be written
+     * @throws IllegalArgumentException if a leaf's label isn't in the label dictionary
+     */
+    public void writeTree(TreeNode root, TreeProvenance provenance) throws IOException {
+
+        if (closed) {
+            throw new IOException("Writer is closed");
+        }
+        tree.reset();
+        treeSplits.clear();
+
+        if (provenance == null) {
+            tree.writeVarint(0);
+        } else {
+            byte[] trainer = provenance.getTrainer() == null ? new byte[0]
+                    : provenance.getTrainer().getBytes(StandardCharsets.UTF_8);
+            tree.writeVarint(1);
+            tree.writeLong(provenance.getSeed());
+            tree.writeLong(provenance.getTrainedAt());
+            tree.writeVarint(provenance.getNumRows());
+            tree.writeVarint(trainer.length);
+            tree.write(trainer, 0, trainer.length);
+        }
+        writeNode(root);
+
+        crc.reset();
+        crc.update(tree.bytes(), 0, tree.size());
+
+        writeVarint(out, tree.size());
+        tree.writeTo(out);
+        int checksum = (int) crc.getValue();
+        out.write(checksum >>> 24);
+        out.write(checksum >>> 16);
+        out.write(checksum >>> 8);
+        out.write(checksum);
+        splits.putAll(treeSplits);
+        numTrees++;
+    }
+
+    /**
+     * Return the number of trees written so far
+     * @return the number of trees
+     */
+    public int numTrees() {
+        return numTrees;
+    }
+
+    /**
+     * Mark the end of the trees and flush, without closing the underlying stream
+     * @throws IOException if the stream can't be written
+     */
+    public void finish() throws IOException {
+
+        if (!closed) {
+            closed = true;
+            writeVarint(out, 0);
+            out.flush();
+        }
+    }
+
+    /**
+     * Mark the end of the trees and close the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write a forest to a stream, leaving the stream open
+     * @param forest - the forest to write
+     * @param out - stream to write to
+     * @throws IOException if the stream can't be written
+     */
+    public static void write(RandomForest forest, OutputStream out) throws IOException {
+        ForestWriter writer = new ForestWriter(out, forest.getLabelDictionary());
+        List<TreeNode> trees = forest.getTrees();
+
+        for (int i = 0; i < trees.size(); ++i) {
+            writer.writeTree(trees.get(i), forest.getTreeProvenance(i));
+        }
+        writer.finish();
+    }
+
+    /**
+     * Save a forest to a file
+     * @param forest - the forest to save
+     * @param file - the file to write. The forest is written to a temporary file in the same
+     *             directory and moved over it, so readers never see a half-written model.
+     * @throws IOException if the file can't be written
+     */
+    public static void save(RandomForest forest, Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, "." + file.getFileName(), ".tmp");
+
+        try {
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel))) {
+                write(forest, out);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Encode a forest as bytes
+     * @param forest - the forest to encode
+     * @return the forest in the binary model format
+     */
+    public static byte[] toBytes(RandomForest forest) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            write(forest, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeNode(TreeNode node) {
+
+        if (node.isLeaf()) {
+            int labelId = labelDictionary.idOf(node.getLabel());
+
+            if (labelId < 0) {
+                throw new IllegalArgumentException("Label " + node.getLabel() + " isn't in the label dictionary");
+            }
+            tree.writeVarint(0);
+            tree.writeVarint(labelId);
+        } else if (node.getLeftNode() == null || node.getRightNode() == null) {
+            throw new IllegalArgumentException("Split on feature " + node.getFeatureIndex() + " has only one child");
+        } else {
+            Integer shared = splits.get(node);
+
+            if (shared == null) {
+                shared = treeSplits.get(node);
+            }
+
+            if (shared != null) {
+                tree.writeVarint(1);
+                tree.writeVarint(shared);
+                return;
+            }
+            tree.writeVarint(node.getFeatureIndex() + 2);
+            tree.writeLong(Double.doubleToRawLongBits(node.getValue()));
+            writeNode(node.getLeftNode());
+            writeNode(node.getRightNode());
+            treeSplits.put(node, splits.size() + treeSplits.size());
+        }
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * A byte array output stream with access to its bytes
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        byte[] bytes() {
+            return buf;
+        }
+
+        void writeVarint(int value) {
+
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeLong(long value) {
+
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+    }
+}
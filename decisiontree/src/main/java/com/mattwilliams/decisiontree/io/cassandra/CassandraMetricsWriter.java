@@ -5,8 +5,6 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.exceptions.InvalidQueryException;
 import com.mattwilliams.decisiontree.io.AbstractMetricsWriter;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -29,7 +27,7 @@ public class CassandraMetricsWriter extends AbstractMetricsWriter {
     }
 
     @Override
-    public void writeMetrics() {
+    public synchronized void writeMetrics() {
 
         Cluster cluster = Cluster.builder()
                 .addContactPoint(connection.getContactPoint())
@@ -44,18 +42,9 @@ public class CassandraMetricsWriter extends AbstractMetricsWriter {
                 "accuracy double, " +
                 "PRIMARY KEY(time))");
 
-        int total = actuals.size();
-        int correct = 0;
-
-        for (int i = 0; i < total; i++) {
-
-            if (actuals.get(i).equals(predictions.get(i))) {
-                correct = correct + 1;
-            }
-        }
-
+        int total = confusionMatrix.total();
         long seconds = System.currentTimeMillis();
-        double accuracy = ((double) correct) / total;
+        double accuracy = confusionMatrix.accuracy();
 
         session.execute("INSERT INTO " + table + " (time, numSamples, accuracy) VALUES (" +
                 seconds + "," +
@@ -63,36 +52,7 @@ public class CassandraMetricsWriter extends AbstractMetricsWriter {
                 accuracy + ")");
 
 
-        // Confusion matrix is a map of actual label to various predictions and their
-        // frequency
-        Map<String, Map<String, Integer>> confusionMatrix = new HashMap<>();
-
-        // Build an empty confusion matrix by iterating over the actual labels
-        // twice. Need to account for fact that some actuals may never be predicted
-        // and thus won't appear in predictions list.
-        for (String actual : actuals) {
-
-            if (!confusionMatrix.containsKey(actual)) {
-                Map<String, Integer> predictions = new HashMap<>();
-
-                for (String prediction : actuals) {
-                    predictions.put(prediction, 0);
-                }
-                confusionMatrix.put(actual, predictions);
-            }
-        }
-
-        // Now tally up the predictions for each actual value
-        for (int i = 0; i < actuals.size(); i++) {
-            String actual = actuals.get(i);
-            Map<String, Integer> predictionCounts = confusionMatrix.get(actual);
-            String prediction = predictions.get(i);
-            int count = predictionCounts.get(prediction);
-            predictionCounts.put(prediction, count + 1);
-            confusionMatrix.put(actual, predictionCounts);
-        }
-
-        Set<String> labels = confusionMatrix.keySet();
+        Set<String> labels = confusionMatrix.labels();
 
         for (String label : labels) {
 
@@ -112,7 +72,7 @@ public class CassandraMetricsWriter extends AbstractMetricsWriter {
                 }
 
                 session.execute("UPDATE " + table + " SET " + column + " = " +
-                        confusionMatrix.get(label).get(predictedLabel) + " WHERE time = " + seconds);
+                        confusionMatrix.count(label, predictedLabel) + " WHERE time = " + seconds);
 
             }
         }
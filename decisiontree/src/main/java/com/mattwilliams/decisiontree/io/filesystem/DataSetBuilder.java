@@ -1,5 +1,6 @@
 package com.mattwilliams.decisiontree.fileio;
 
+import com.mattwilliams.decisiontree.base.LabelDictionary;
 import com.mattwilliams.decisiontree.base.Matrix;
 import com.mattwilliams.decisiontree.base.Row;
 
@@ -49,8 +50,11 @@ public class DataSetBuilder {
      */
     public DataSetBuilder(double trainingRatio) {
         this.trainingRatio = trainingRatio;
-        trainingSet = new Matrix();
-        testSet = new Matrix();
+
+        // Both sets encode labels with the same dictionary so their label ids agree
+        LabelDictionary labelDictionary = new LabelDictionary();
+        trainingSet = new Matrix(labelDictionary);
+        testSet = new Matrix(labelDictionary);
     }
 
     /**
@@ -3,7 +3,7 @@ package com.mattwilliams.decisiontree.io.filesystem;
 import com.mattwilliams.decisiontree.io.AbstractMetricsWriter;
 
 import java.io.PrintStream;
-import java.util.*;
+import java.util.Set;
 
 /**
  * The MetricsWriter class prints accuracy information
@@ -33,7 +33,7 @@ public class FileMetricsWriter extends AbstractMetricsWriter {
     }
 
     @Override
-    public void writeMetrics() {
+    public synchronized void writeMetrics() {
         printSectionBreak(writer);
         writer.println("ACCURACY");
         printSectionBreak(writer);
@@ -51,57 +51,19 @@ public class FileMetricsWriter extends AbstractMetricsWriter {
      * Prints a description of the accuracy of the predictions
      */
     private void printAccuracyMetrics() {
-        int total = actuals.size();
-        int correct = 0;
+        writer.println("Samples classified: " + confusionMatrix.total());
+        writer.println("Accuracy: " + confusionMatrix.accuracy());
 
-
-        for (int i=0; i<total; i++) {
-
-            if (actuals.get(i).equals(predictions.get(i))) {
-                correct = correct + 1;
-            }
+        if (confusionMatrix.unlabeled() > 0) {
+            writer.println("Unlabeled samples skipped: " + confusionMatrix.unlabeled());
         }
-        writer.println("Samples classified: " + total);
-        double accuracy = ((double)correct) / total;
-        writer.println("Accuracy: " + accuracy);
-
     }
 
     /**
      * Prints a confusion matrix from the predictions
      */
     private void printConfusionMatrix() {
-
-        // Confusion matrix is a map of actual label to various predictions and their
-        // frequency
-        Map<String, Map<String, Integer>> confusionMatrix = new HashMap<>();
-
-        // Build an empty confusion matrix by iterating over the actual labels
-        // twice. Need to account for fact that some actuals may never be predicted
-        // and thus won't appear in predictions list.
-        for (String actual : actuals) {
-
-            if (!confusionMatrix.containsKey(actual)) {
-                Map<String, Integer> predictions = new HashMap<>();
-
-                for (String prediction : actuals) {
-                    predictions.put(prediction, 0);
-                }
-                confusionMatrix.put(actual, predictions);
-            }
-        }
-
-        // Now tally up the predictions for each actual value
-        for (int i=0; i<actuals.size(); i++) {
-            String actual = actuals.get(i);
-            Map<String, Integer> predictionCounts = confusionMatrix.get(actual);
-            String prediction = predictions.get(i);
-            int count = predictionCounts.get(prediction);
-            predictionCounts.put(prediction, count + 1);
-            confusionMatrix.put(actual, predictionCounts);
-        }
-
-        Set<String> labels = confusionMatrix.keySet();
+        Set<String> labels = confusionMatrix.labels();
 
         // Print the matrix
         writer.format(colFormat, " ");
@@ -115,7 +77,7 @@ public class FileMetricsWriter extends AbstractMetricsWriter {
             writer.format(colFormat, label);
 
             for (String predictedLabel : labels) {
-                writer.format(colFormat, confusionMatrix.get(label).get(predictedLabel));
+                writer.format(colFormat, confusionMatrix.count(label, predictedLabel));
             }
             writer.println();
         }
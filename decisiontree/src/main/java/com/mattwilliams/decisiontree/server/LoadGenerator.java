@@ -0,0 +1,232 @@
+package com.mattwilliams.decisiontree.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The LoadGenerator benchmarks a ScoringServer. It opens a number of connections at once,
+ * each sending random rows one at a time and waiting for each answer before sending the
+ * next, and reports the latency of the requests and the throughput of the server.
+ *
+ * Usage: java LoadGenerator [host] [port] [connections] [requests] [features]
+ *
+ * @author Matt Williams
+ */
+public class LoadGenerator {
+
+    private final String host;
+
+    private final int port;
+
+    private int connections = 16;
+
+    private int requests = 10000;
+
+    private int numFeatures = 4;
+
+    private int warmupRequests = 1000;
+
+    private long seed;
+
+    private final AtomicInteger errors = new AtomicInteger();
+
+    /**
+     * Creates a LoadGenerator
+     * @param host - host the server is running on
+     * @param port - port the server is listening on
+     */
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Set the number of connections sending requests at once
+     * @param connections - the number of connections
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Set the number of requests each connection sends and times
+     * @param requests - the number of requests per connection
+     */
+    public void setRequests(int requests) {
+        this.requests = requests;
+    }
+
+    /**
+     * Set the number of untimed requests each connection sends first
+     * @param warmupRequests - the number of warmup requests per connection
+     */
+    public void setWarmupRequests(int warmupRequests) {
+        this.warmupRequests = warmupRequests;
+    }
+
+    /**
+     * Set the number of features in each random row
+     * @param numFeatures - the number of features
+     */
+    public void setNumFeatures(int numFeatures) {
+        this.numFeatures = numFeatures;
+    }
+
+    /**
+     * Set the seed for the random rows
+     * @param seed - the seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Get the number of requests answered with an error in the last run
+     * @return the number of errors
+     */
+    public int getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Send the requests and time them
+     * @return the latency of every timed request in nanoseconds, sorted
+     * @throws IOException if a connection fails
+     * @throws InterruptedException if interrupted waiting for the connections
+     */
+    public long[] run() throws IOException, InterruptedException {
+        errors.set(0);
+        long[][] latencies = new long[connections][];
+        List<Thread> threads = new ArrayList<>();
+        List<IOException> failures = new ArrayList<>();
+
+        for (int c = 0; c < connections; ++c) {
+            final int connection = c;
+            Thread thread = new Thread(() -> {
+
+                try {
+                    latencies[connection] = sendRequests(new Random(seed + connection));
+                } catch (IOException e) {
+
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }, "load-" + c);
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+        long[] all = new long[connections * requests];
+
+        for (int c = 0; c < connections; ++c) {
+            System.arraycopy(latencies[c], 0, all, c * requests, requests);
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private long[] sendRequests(Random random) throws IOException {
+        long[] latencies = new long[requests];
+
+        try (Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+
+            socket.setTcpNoDelay(true);
+
+            for (int i = -warmupRequests; i < requests; ++i) {
+                String row = randomRow(random);
+                long start = System.nanoTime();
+                out.write(row);
+                out.newLine();
+                out.flush();
+                String response = in.readLine();
+                long latency = System.nanoTime() - start;
+
+                if (response == null) {
+                    throw new IOException("Server closed the connection");
+                } else if (response.startsWith("ERROR")) {
+                    errors.incrementAndGet();
+                }
+
+                if (i >= 0) {
+                    latencies[i] = latency;
+                }
+            }
+        }
+        return latencies;
+    }
+
+    private String randomRow(Random random) {
+        StringJoiner row = new StringJoiner(",");
+
+        for (int feature = 0; feature < numFeatures; ++feature) {
+            row.add(String.valueOf(random.nextGaussian()));
+        }
+        return row.toString();
+    }
+
+    /**
+     * Return a percentile of sorted latencies
+     * @param sorted - sorted latencies
+     * @param percentile - the percentile, 0 - 100
+     * @return the latency at that percentile
+     */
+    public static long percentile(long[] sorted, double percentile) {
+
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9090;
+        LoadGenerator generator = new LoadGenerator(host, port);
+
+        if (args.length > 2) {
+            generator.setConnections(Integer.parseInt(args[2]));
+        }
+
+        if (args.length > 3) {
+            generator.setRequests(Integer.parseInt(args[3]));
+        }
+
+        if (args.length > 4) {
+            generator.setNumFeatures(Integer.parseInt(args[4]));
+        }
+
+        long start = System.nanoTime();
+        long[] latencies = generator.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d requests on %d connections in %.2fs (%.0f requests/s, including warmup)%n",
+                latencies.length, generator.connections, seconds,
+                (latencies.length + generator.connections * generator.warmupRequests) / seconds);
+        System.out.printf("Latency (us): p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                percentile(latencies, 50) / 1e3, percentile(latencies, 90) / 1e3, percentile(latencies, 99) / 1e3,
+                percentile(latencies, 99.9) / 1e3, percentile(latencies, 100) / 1e3);
+        System.out.println("Errors: " + generator.getErrors());
+    }
+}
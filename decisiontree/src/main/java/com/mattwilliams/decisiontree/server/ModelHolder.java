@@ -0,0 +1,355 @@
+package com.mattwilliams.decisiontree.server;
+
+import com.google.gson.Gson;
+import com.mattwilliams.decisiontree.base.MappedForest;
+import com.mattwilliams.decisiontree.base.Matrix;
+import com.mattwilliams.decisiontree.base.Predictor;
+import com.mattwilliams.decisiontree.base.RandomForest;
+import com.mattwilliams.decisiontree.base.Row;
+import com.mattwilliams.decisiontree.io.ForestReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A ModelHolder is a Predictor whose model can be replaced while it is in use, so a
+ * long-running server can pick up a retrained forest without restarting.
+ *
+ * The current model is an immutable snapshot held in an AtomicReference. Each prediction
+ * reads the snapshot once and uses it to the end, so predictions already running when a
+ * new model is swapped in finish on the old one, and predicting never takes a lock. Every
+ * model swapped in gets the next version number, which is returned by modelVersion, so a
+ * CachingPredictor in front of the holder drops its predictions when the model changes.
+ *
+ * New models can be pushed with swap or load, or picked up by watching a directory: any
+ * model file created or replaced in the directory is loaded and swapped in. Model files
+ * are forests in the binary model format (.forest), memory-mapped forests (.mforest, see
+ * MappedForest) or JSON (.json). Writers should
+ * write the file elsewhere and move it into the directory, so a half-written model is
+ * never read. Memory-mapped forests are checked against their checksum before they are
+ * swapped in. A model that fails to load leaves the current one in place.
+ *
+ * RandomForests are compiled before they are swapped in (see RandomForest.compile).
+ *
+ * @author Matt Williams
+ */
+public class ModelHolder implements Predictor, Closeable {
+
+    /**
+     * Extension of forests saved in the binary model format (see ForestWriter)
+     */
+    public static final String BINARY_EXTENSION = ".forest";
+
+    /**
+     * Extension of forests saved as JSON
+     */
+    public static final String JSON_EXTENSION = ".json";
+
+    /**
+     * Time to wait for more changes to a directory before loading a model, in milliseconds
+     */
+    private static final long QUIET_PERIOD = 100;
+
+    private final AtomicReference<Model> model = new AtomicReference<>();
+
+    /**
+     * Held while a model is numbered and installed, so versions go live in order.
+     * Predictions never take it.
+     */
+    private final Object swapLock = new Object();
+
+    /**
+     * Version of the last model swapped in, guarded by swapLock
+     */
+    private long versions;
+
+    private volatile long lastSwapNanos = -1;
+
+    private WatchService watchService;
+
+    private Thread watcher;
+
+    /**
+     * Creates an empty ModelHolder. Predicting fails until a model is swapped in.
+     */
+    public ModelHolder() {
+    }
+
+    /**
+     * Creates a ModelHolder serving the given model
+     * @param predictor - the first model
+     */
+    public ModelHolder(Predictor predictor) {
+        swap(predictor);
+    }
+
+    @Override
+    public String predict(Row row) {
+        return current().getPredictor().predict(row);
+    }
+
+    @Override
+    public void predict(Matrix matrix, int from, int to, String[] labels) {
+        current().getPredictor().predict(matrix, from, to, labels);
+    }
+
+    @Override
+    public long modelVersion() {
+        Model current = model.get();
+        return current == null ? 0 : current.getVersion();
+    }
+
+    /**
+     * Get the model currently used for predictions. Callers making several related calls
+     * should use the same snapshot for all of them.
+     * @return the current model, or null if none has been swapped in
+     */
+    public Model getModel() {
+        return model.get();
+    }
+
+    /**
+     * Swap in a new model. Predictions that have already started finish on the old model.
+     * @param predictor - the new model
+     * @return the version of the new model
+     */
+    public long swap(Predictor predictor) {
+        return swap(predictor, "push", System.nanoTime());
+    }
+
+    /**
+     * Load a model file and swap it in
+     * @param file - a forest in the binary model format (.forest), a memory-mapped forest
+     *             (.mforest) or JSON (.json)
+     * @return the version of the new model
+     * @throws IOException if the file can't be read
+     */
+    public long load(Path file) throws IOException {
+        long start = System.nanoTime();
+        return swap(read(file), file.toString(), start);
+    }
+
+    /**
+     * Get the time taken by the last swap, from the new model being pushed or its file
+     * starting to be read until it was serving predictions, including loading and
+     * compiling it
+     * @return the swap latency in nanoseconds, or -1 if no model has been swapped in
+     */
+    public long getLastSwapNanos() {
+        return lastSwapNanos;
+    }
+
+    /**
+     * Load the newest model in a directory, then keep watching it and swap in every
+     * model file that is created or replaced there
+     * @param directory - the directory to watch
+     * @throws IOException if the directory can't be watched
+     */
+    public synchronized void watch(Path directory) throws IOException {
+
+        if (watcher != null) {
+            throw new IllegalStateException("Already watching a directory");
+        }
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Path newest = null;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, ModelHolder::isModelFile)) {
+
+            for (Path file : files) {
+
+                if (newest == null || Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(newest)) > 0) {
+                    newest = file;
+                }
+            }
+        }
+
+        if (newest != null) {
+            load(newest);
+        }
+
+        WatchService service = watchService;
+        watcher = new Thread(() -> watchDirectory(service, directory), "model-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Stop watching the model directory
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (watcher == null) {
+            return;
+        }
+        watchService.close();
+        watcher.interrupt();
+
+        try {
+            watcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        watcher = null;
+        watchService = null;
+    }
+
+    private Model current() {
+        Model current = model.get();
+
+        if (current == null) {
+            throw new IllegalStateException("No model has been loaded");
+        }
+        return current;
+    }
+
+    private long swap(Predictor predictor, String source, long start) {
+
+        if (predictor instanceof RandomForest) {
+            predictor = ((RandomForest) predictor).compile();
+        }
+
+        synchronized (swapLock) {
+            Model next = new Model(predictor, ++versions, source, System.currentTimeMillis());
+            model.set(next);
+            lastSwapNanos = System.nanoTime() - start;
+            return next.getVersion();
+        }
+    }
+
+    private void watchDirectory(WatchService service, Path directory) {
+
+        while (true) {
+            Path changed = null;
+
+            try {
+                WatchKey key = service.take();
+
+                // A file is usually reported more than once while it is written, so wait
+                // for the directory to go quiet and load the last model file changed
+                while (key != null) {
+
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Object context = event.context();
+
+                        if (context instanceof Path && isModelFile((Path) context)) {
+                            changed = directory.resolve((Path) context);
+                        }
+                    }
+                    key.reset();
+                    key = service.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            if (changed != null && Files.isRegularFile(changed)) {
+
+                try {
+                    long start = System.nanoTime();
+                    long version = swap(read(changed), changed.toString(), start);
+                    System.err.println("Swapped in model version " + version + " from " + changed
+                            + " in " + TimeUnit.NANOSECONDS.toMillis(lastSwapNanos) + "ms");
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Failed to load model " + changed + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static boolean isModelFile(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(BINARY_EXTENSION) || name.endsWith(MappedForest.EXTENSION) || name.endsWith(JSON_EXTENSION);
+    }
+
+    /**
+     * Read a forest in the binary model format, map a memory-mapped forest, or read a
+     * forest saved as JSON
+     */
+    static Predictor read(Path file) throws IOException {
+        String name = file.getFileName().toString();
+
+        if (name.endsWith(MappedForest.EXTENSION)) {
+            // Check the whole file now, so a corrupt model is never swapped in
+            MappedForest forest = MappedForest.open(file);
+            forest.verify();
+            return forest;
+        } else if (!name.endsWith(JSON_EXTENSION)) {
+            return ForestReader.load(file);
+        }
+
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            RandomForest forest = new Gson().fromJson(reader, RandomForest.class);
+
+            if (forest == null) {
+                throw new IOException("No model in " + file);
+            }
+            return forest;
+        }
+    }
+
+    /**
+     * A model and the version it was swapped in as
+     */
+    public static final class Model {
+
+        private final Predictor predictor;
+        private final long version;
+        private final String source;
+        private final long loadedAt;
+
+        Model(Predictor predictor, long version, String source, long loadedAt) {
+            this.predictor = predictor;
+            this.version = version;
+            this.source = source;
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * Get the predictor for this model
+         * @return the predictor
+         */
+        public Predictor getPredictor() {
+            return predictor;
+        }
+
+        /**
+         * Get the version this model was swapped in as; versions start at 1 and go up by
+         * one with every swap
+         * @return the version
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get where this model came from
+         * @return the file the model was loaded from, or "push" if it was swapped in directly
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * Get when this model was swapped in
+         * @return the time in milliseconds since the epoch
+         */
+        public long getLoadedAt() {
+            return loadedAt;
+        }
+    }
+}
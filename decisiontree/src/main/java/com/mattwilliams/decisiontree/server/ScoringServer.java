@@ -0,0 +1,439 @@
+package com.mattwilliams.decisiontree.server;
+
+import com.mattwilliams.decisiontree.base.Matrix;
+import com.mattwilliams.decisiontree.base.Predictor;
+import com.mattwilliams.decisiontree.base.RandomForest;
+import com.mattwilliams.decisiontree.base.Row;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ScoringServer keeps a trained model loaded and predicts labels for feature vectors
+ * sent over a local TCP socket.
+ *
+ * The protocol is one line per request: the client sends a row's feature values
+ * separated by commas, and the server answers with the predicted label on its own line,
+ * or a line starting with "ERROR" if the row couldn't be predicted. Answers come back in
+ * the order the requests were sent, and a connection can send as many requests as it
+ * likes before closing.
+ *
+ * Each connection is handled by its own thread, a virtual thread when the JVM supports
+ * them. Connections don't call the model themselves; they queue their rows for the batch
+ * threads, which take every row waiting in the queue and predict them together with the
+ * batch Predictor API. Batches are never held back waiting for more rows, so a lone
+ * request is predicted straight away, while under load many rows share one pass over
+ * the trees.
+ *
+ * RandomForests are compiled before serving (see RandomForest.compile). Other predictors
+ * must be safe to call from several threads at once if there is more than one batch
+ * thread.
+ *
+ * @author Matt Williams
+ */
+public class ScoringServer implements Closeable {
+
+    /**
+     * Default maximum number of rows predicted in one batch
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    private final Predictor predictor;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    private int batchThreads = Runtime.getRuntime().availableProcessors();
+
+    private ServerSocket serverSocket;
+
+    private ExecutorService connections;
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running;
+
+    private CountDownLatch closed = new CountDownLatch(0);
+
+    /**
+     * Creates a ScoringServer
+     * @param predictor - the model to predict with
+     */
+    public ScoringServer(Predictor predictor) {
+        this.predictor = predictor instanceof RandomForest ? ((RandomForest) predictor).compile() : predictor;
+    }
+
+    /**
+     * Get the maximum number of rows predicted in one batch
+     * @return the maximum batch size
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Set the maximum number of rows predicted in one batch
+     * @param maxBatchSize - the maximum batch size, at least 1
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Get the number of threads predicting batches
+     * @return the number of batch threads
+     */
+    public int getBatchThreads() {
+        return batchThreads;
+    }
+
+    /**
+     * Set the number of threads predicting batches. Must be set before the server starts.
+     * @param batchThreads - the number of batch threads, at least 1
+     */
+    public void setBatchThreads(int batchThreads) {
+
+        if (batchThreads < 1) {
+            throw new IllegalArgumentException("Number of batch threads must be at least 1");
+        }
+        this.batchThreads = batchThreads;
+    }
+
+    /**
+     * Start listening for connections on the loopback address
+     * @param port - the port to listen on, or 0 for any free port
+     * @throws IOException if the socket can't be opened
+     */
+    public void start(int port) throws IOException {
+        start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Start listening for connections
+     * @param address - the address to listen on
+     * @throws IOException if the socket can't be opened
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+
+        if (running) {
+            throw new IllegalStateException("Server is already running");
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address);
+        connections = newConnectionExecutor();
+        closed = new CountDownLatch(1);
+        running = true;
+
+        for (int i = 0; i < batchThreads; ++i) {
+            startThread("scoring-batch-" + i, this::predictBatches);
+        }
+        startThread("scoring-accept", this::acceptConnections);
+    }
+
+    /**
+     * Get the port the server is listening on
+     * @return the port, or -1 if the server isn't running
+     */
+    public int getPort() {
+        ServerSocket socket = serverSocket;
+        return socket == null ? -1 : socket.getLocalPort();
+    }
+
+    /**
+     * Stop accepting connections, close the open ones and stop the batch threads
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (!running) {
+            return;
+        }
+        running = false;
+        serverSocket.close();
+        connections.shutdownNow();
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        threads.clear();
+
+        // Fail the requests no batch thread will get to
+        Request request;
+
+        while ((request = queue.poll()) != null) {
+            request.result.completeExceptionally(new IllegalStateException("Server is not running"));
+        }
+
+        try {
+            connections.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed.countDown();
+    }
+
+    /**
+     * Wait until the server is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+
+    /**
+     * Predict the label for a row through the batch queue, waiting for the answer
+     * @param row - a row with features
+     * @return the predicted label
+     */
+    public String predict(Row row) {
+
+        if (!running) {
+            throw new IllegalStateException("Server is not running");
+        }
+        Request request = new Request(row);
+        queue.add(request);
+
+        // close may have drained the queue after the check above, in which case no batch
+        // thread will ever take the request. Completing it twice is harmless.
+        if (!running) {
+            queue.remove(request);
+            request.result.completeExceptionally(new IllegalStateException("Server is not running"));
+        }
+
+        try {
+            return request.result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for prediction");
+        }
+    }
+
+    private void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    private void acceptConnections() {
+
+        while (running) {
+
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+
+                try {
+                    connections.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    // The server is closing
+                    sockets.remove(socket);
+                    socket.close();
+                }
+            } catch (IOException e) {
+
+                if (running) {
+                    System.err.println("Failed to accept connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer a connection's requests until it closes
+     */
+    private void serve(Socket socket) {
+
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+
+            String line;
+
+            while (running && (line = in.readLine()) != null) {
+                String response;
+
+                try {
+                    response = predict(parseRow(line));
+                } catch (RuntimeException e) {
+                    response = "ERROR " + e.getMessage();
+                }
+                out.write(response);
+                out.newLine();
+
+                // Only flush once every request already sent has been answered
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch (SocketException e) {
+            // The connection was closed by the client or by close()
+        } catch (IOException e) {
+            System.err.println("Connection failed: " + e.getMessage());
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    /**
+     * Take every request waiting in the queue, up to the maximum batch size, and predict
+     * them together
+     */
+    private void predictBatches() {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+
+        while (running) {
+
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, maxBatchSize - 1);
+            predictBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void predictBatch(List<Request> batch) {
+        int numFeatures = batch.get(0).row.numFeatures();
+        Matrix matrix = new Matrix();
+        List<Request> batched = new ArrayList<>(batch.size());
+
+        for (Request request : batch) {
+
+            // A matrix's rows all have the same number of features; predict the others alone
+            if (request.row.numFeatures() == numFeatures) {
+                matrix.addRow(request.row);
+                batched.add(request);
+            } else {
+                predictOne(request);
+            }
+        }
+
+        try {
+            String[] labels = new String[batched.size()];
+            predictor.predict(matrix, 0, labels.length, labels);
+
+            for (int i = 0; i < labels.length; ++i) {
+                batched.get(i).result.complete(labels[i]);
+            }
+        } catch (RuntimeException e) {
+
+            // Find out which rows failed
+            for (Request request : batched) {
+                predictOne(request);
+            }
+        }
+    }
+
+    private void predictOne(Request request) {
+
+        try {
+            request.result.complete(predictor.predict(request.row));
+        } catch (RuntimeException e) {
+            request.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Parse a row of comma-separated feature values
+     */
+    static Row parseRow(String line) {
+        Row row = new Row();
+        int start = 0;
+
+        while (start <= line.length()) {
+            int end = line.indexOf(',', start);
+
+            if (end < 0) {
+                end = line.length();
+            }
+            String value = line.substring(start, end).trim();
+
+            try {
+                row.addFeature(Double.parseDouble(value));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad feature value: \"" + value + "\"");
+            }
+            start = end + 1;
+        }
+        return row;
+    }
+
+    /**
+     * Create the executor for connections: one virtual thread per connection when the JVM
+     * supports them, otherwise a pool of platform threads
+     */
+    private static ExecutorService newConnectionExecutor() {
+
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "scoring-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * A row waiting to be predicted
+     */
+    private static class Request {
+
+        final Row row;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Request(Row row) {
+            this.row = row;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.mattwilliams.decisiontree.base;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class GeneratedForestTest {
+
+    @Before
+    public void needsCompiler() {
+        assumeTrue("No Java compiler available", GeneratedForest.isAvailable());
+    }
+
+    @Test
+    public void predictsLikeTheForest() {
+        RandomForest forest = TestForests.forest();
+        ProbabilityPredictor generated = GeneratedForest.generate(forest);
+
+        assertTrue(generated instanceof GeneratedForest);
+        TestForests.assertSamePredictions(forest, generated, TestForests.edgeRows(forest, 2));
+    }
+
+    @Test
+    public void predictsLikeTheCompactedForest() {
+        RandomForest forest = TestForests.forest();
+        forest.compact();
+
+        TestForests.assertSamePredictions(forest, GeneratedForest.generate(forest), TestForests.edgeRows(forest, 3));
+    }
+
+    @Test
+    public void interpretsTreesTooLargeToGenerate() {
+        RandomForest forest = TestForests.forest();
+
+        // 511 splits, over MAX_METHOD_NODES
+        forest.addTree(TestForests.bigTree(new Random(4), 9));
+        ProbabilityPredictor generated = GeneratedForest.generate(forest);
+
+        assertTrue(generated instanceof GeneratedForest);
+        assertTrue(((GeneratedForest) generated).numGeneratedTrees() < forest.getTrees().size());
+        TestForests.assertSamePredictions(forest, generated, TestForests.edgeRows(forest, 4));
+    }
+
+    @Test
+    public void compilesForestsWithNoTreeSmallEnough() {
+        RandomForest forest = new RandomForest();
+        forest.addTree(TestForests.bigTree(new Random(5), 9));
+        ProbabilityPredictor generated = GeneratedForest.generate(forest);
+
+        assertTrue(generated instanceof CompiledForest);
+        TestForests.assertSamePredictions(forest, generated, TestForests.edgeRows(forest, 6));
+    }
+}
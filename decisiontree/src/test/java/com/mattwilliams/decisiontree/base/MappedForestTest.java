@@ -0,0 +1,140 @@
+package com.mattwilliams.decisiontree.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MappedForestTest {
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int NODE_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsCompactedForest() throws IOException {
+        RandomForest forest = TestForests.forest();
+        forest.compact();
+        Path file = folder.getRoot().toPath().resolve("model" + MappedForest.EXTENSION);
+
+        MappedForest.write(forest, file);
+        MappedForest mapped = MappedForest.open(file);
+        mapped.verify();
+
+        assertEquals(forest.getTrees().size(), mapped.numTrees());
+        TestForests.assertSamePredictions(forest, mapped, TestForests.edgeRows(forest, 2));
+    }
+
+    @Test
+    public void keepsPredictingFromTheOldModelWhenReplaced() throws IOException {
+        RandomForest first = TestForests.forest();
+        RandomForest second = new RandomForest(first.getLabelDictionary());
+        second.addTree(first.getTrees().get(0));
+        Path file = folder.getRoot().toPath().resolve("model" + MappedForest.EXTENSION);
+
+        MappedForest.write(first, file);
+        MappedForest mapped = MappedForest.open(file);
+        MappedForest.write(second, file);
+
+        TestForests.assertSamePredictions(first, mapped, TestForests.edgeRows(first, 3));
+        TestForests.assertSamePredictions(second, MappedForest.open(file), TestForests.edgeRows(second, 4));
+        assertArrayEquals(new String[] {"model" + MappedForest.EXTENSION}, folder.getRoot().list());
+    }
+
+    @Test
+    public void rejectsCorruptedPayload() throws IOException {
+        Path file = write(TestForests.forest());
+        byte[] bytes = Files.readAllBytes(file);
+        int numTrees = header(bytes).getInt(8);
+        int firstNode = HEADER_SIZE + (numTrees * 4 + 7) / 8 * 8;
+
+        // A corrupt threshold still opens, but fails verification
+        bytes[firstNode + NODE_SIZE + 8] ^= 0x01;
+        Files.write(file, bytes);
+        MappedForest mapped = MappedForest.open(file);
+
+        try {
+            mapped.verify();
+            fail("Corrupt threshold was verified");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void failsInsteadOfLoopingOnCorruptChild() throws IOException {
+        Path file = write(TestForests.forest());
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer buffer = header(bytes);
+        int numTrees = buffer.getInt(8);
+        int root = buffer.getInt(HEADER_SIZE);
+        int node = HEADER_SIZE + (numTrees * 4 + 7) / 8 * 8 + root * NODE_SIZE;
+
+        // Point the first tree's root at itself
+        buffer.putInt(node + 4, root);
+        Files.write(file, bytes);
+        MappedForest mapped = MappedForest.open(file);
+
+        try {
+            mapped.predict(TestForests.trainingData(5, 1).get(0));
+            fail("Corrupt child was followed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void rejectsCorruptHeaders() throws IOException {
+        byte[] bytes = Files.readAllBytes(write(TestForests.forest()));
+
+        for (int offset = 0; offset < 28; offset += 4) {
+
+            // The checksum is only checked by verify
+            if (offset == 20) {
+                continue;
+            }
+            byte[] corrupted = bytes.clone();
+            corrupted[offset + 1] ^= 0x10;
+            assertRejected(corrupted, "Corrupt header field at " + offset);
+        }
+
+        for (int length = 0; length < bytes.length; length += 13) {
+            assertRejected(Arrays.copyOf(bytes, length), "Truncated to " + length + " bytes");
+        }
+    }
+
+    private Path write(RandomForest forest) throws IOException {
+        Path file = folder.newFile("model" + MappedForest.EXTENSION).toPath();
+        MappedForest.write(forest, file);
+        return file;
+    }
+
+    private static ByteBuffer header(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void assertRejected(byte[] bytes, String message) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, bytes);
+
+        try {
+            MappedForest.open(file);
+            fail(message + " was opened");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.mattwilliams.decisiontree.base;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class QuickScorerForestTest {
+
+    @Test
+    public void predictsLikeTheForest() {
+        RandomForest forest = TestForests.forest();
+        QuickScorerForest scorer = new QuickScorerForest(forest);
+
+        assertEquals(forest.getTrees().size(), scorer.numTrees());
+        TestForests.assertSamePredictions(forest, scorer, TestForests.edgeRows(forest, 2));
+    }
+
+    @Test
+    public void predictsLikeTheCompactedForest() {
+        RandomForest forest = TestForests.forest();
+        forest.compact();
+
+        TestForests.assertSamePredictions(forest, new QuickScorerForest(forest), TestForests.edgeRows(forest, 3));
+    }
+
+    @Test
+    public void predictsTreesWithMoreThan64Leaves() {
+        Random random = new Random(4);
+        RandomForest forest = TestForests.forest();
+
+        // Bitvectors of several words, and of exactly one
+        forest.addTree(TestForests.bigTree(random, 8));
+        forest.addTree(TestForests.bigTree(random, 6));
+
+        TestForests.assertSamePredictions(forest, new QuickScorerForest(forest), TestForests.edgeRows(forest, 5));
+    }
+}
@@ -0,0 +1,238 @@
+package com.mattwilliams.decisiontree.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Forests and rows shared by the tests of the predictors and model formats that must
+ * give the same predictions as the RandomForest they were built from.
+ *
+ * @author Matt Williams
+ */
+public final class TestForests {
+
+    public static final int NUM_FEATURES = 4;
+
+    private static final String[] LABELS = {"low", "mid", "high"};
+
+    private TestForests() {
+    }
+
+    /**
+     * Make labelled rows whose label depends on the first two features, with some noise
+     * @param seed - seed for the feature values
+     * @param numRows - the number of rows
+     * @return the rows
+     */
+    public static Matrix trainingData(long seed, int numRows) {
+        Random random = new Random(seed);
+        Matrix matrix = new Matrix();
+
+        for (int i = 0; i < numRows; ++i) {
+            Row row = new Row();
+
+            for (int feature = 0; feature < NUM_FEATURES; ++feature) {
+                // Rounded so that rows share values and thresholds fall between them
+                row.addFeature(Math.round(random.nextDouble() * 100) / 10.0);
+            }
+            double score = row.featureAt(0) + row.featureAt(1) / 2 + random.nextGaussian();
+            row.setLabel(score < 5 ? LABELS[0] : score < 10 ? LABELS[1] : LABELS[2]);
+            matrix.addRow(row);
+        }
+        return matrix;
+    }
+
+    /**
+     * Train a forest, then add a tree with a NaN threshold that no training run would grow
+     * @return the forest
+     */
+    public static RandomForest forest() {
+        RandomForestBuilder builder = new RandomForestBuilder(12);
+        builder.setSeed(1);
+        RandomForest forest = (RandomForest) builder.train(trainingData(1, 500));
+
+        // No row goes left at a NaN threshold
+        TreeNode split = new TreeNode();
+        split.setFeatureIndex(2);
+        split.setValue(5);
+        split.setLeftNode(leaf(LABELS[0]));
+        split.setRightNode(leaf(LABELS[2]));
+
+        TreeNode root = new TreeNode();
+        root.setFeatureIndex(0);
+        root.setValue(Double.NaN);
+        root.setLeftNode(leaf(LABELS[1]));
+        root.setRightNode(split);
+        forest.addTree(root, new TreeProvenance(42, 0, 0, "hand-built"));
+        return forest;
+    }
+
+    /**
+     * Build a complete tree of the given depth with random tests and leaf labels. Trained
+     * trees use each feature at most once on a path, so they can't be this big.
+     * @param random - random number generator for the tests and labels
+     * @param depth - the depth of the tree; it has 2^depth leaves
+     * @return the tree
+     */
+    public static TreeNode bigTree(Random random, int depth) {
+
+        if (depth == 0) {
+            return leaf(LABELS[random.nextInt(LABELS.length)]);
+        }
+        TreeNode split = new TreeNode();
+        split.setFeatureIndex(random.nextInt(NUM_FEATURES));
+        split.setValue(Math.round(random.nextDouble() * 100) / 10.0);
+        split.setLeftNode(bigTree(random, depth - 1));
+        split.setRightNode(bigTree(random, depth - 1));
+        return split;
+    }
+
+    /**
+     * Make rows that test the edges of every split in a forest: random rows, rows with a
+     * feature exactly at each threshold and just below it, and rows with NaN and infinite
+     * features
+     * @param forest - the forest
+     * @param seed - seed for the other feature values
+     * @return the rows, without labels
+     */
+    public static Matrix edgeRows(RandomForest forest, long seed) {
+        Random random = new Random(seed);
+        List<Row> rows = new ArrayList<>();
+
+        for (int i = 0; i < 200; ++i) {
+            rows.add(randomRow(random));
+        }
+
+        for (TreeNode split : splits(forest)) {
+            double threshold = split.getValue();
+
+            for (double value : new double[] {threshold, Math.nextDown(threshold)}) {
+                rows.add(randomRow(random, split.getFeatureIndex(), value));
+            }
+        }
+
+        for (double special : new double[] {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY}) {
+
+            for (int feature = 0; feature < NUM_FEATURES; ++feature) {
+                rows.add(randomRow(random, feature, special));
+            }
+            rows.add(constantRow(special));
+        }
+
+        Matrix matrix = new Matrix(forest.getLabelDictionary());
+
+        for (Row row : rows) {
+            matrix.addRow(row);
+        }
+        return matrix;
+    }
+
+    /**
+     * Check that a predictor gives the same labels and probabilities as a forest, one row
+     * at a time and in blocks
+     * @param expected - the forest
+     * @param actual - a predictor built from the forest
+     * @param rows - rows to predict
+     */
+    public static void assertSamePredictions(RandomForest expected, ProbabilityPredictor actual, Matrix rows) {
+        int numLabels = expected.getLabelDictionary().size();
+        assertEquals(expected.getLabelDictionary().labels(), actual.getLabelDictionary().labels());
+
+        double[] expectedProba = new double[numLabels];
+        double[] actualProba = new double[numLabels];
+
+        for (int i = 0; i < rows.size(); ++i) {
+            Row row = rows.get(i);
+            assertEquals("Row " + i, expected.predict(row), actual.predict(row));
+
+            expected.predictProba(row, expectedProba);
+            actual.predictProba(row, actualProba);
+            assertArrayEquals("Row " + i, expectedProba, actualProba, 1e-12);
+        }
+
+        assertArrayEquals(expected.predict(rows), actual.predict(rows));
+        assertArrayEquals(expected.predictProba(rows), actual.predictProba(rows), 1e-12);
+    }
+
+    /**
+     * Count the distinct splits in a forest's trees, counting shared splits once
+     * @param forest - the forest
+     * @return the number of distinct splits
+     */
+    public static int distinctSplits(RandomForest forest) {
+        return splits(forest).size();
+    }
+
+    private static List<TreeNode> splits(RandomForest forest) {
+        List<TreeNode> splits = new ArrayList<>();
+
+        for (TreeNode node : nodes(forest)) {
+
+            if (!node.isLeaf()) {
+                splits.add(node);
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * List every distinct node in a forest, in the order they are first reached
+     */
+    private static List<TreeNode> nodes(RandomForest forest) {
+        Set<TreeNode> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<TreeNode> nodes = new ArrayList<>();
+
+        for (TreeNode tree : forest.getTrees()) {
+            collect(tree, seen, nodes);
+        }
+        return nodes;
+    }
+
+    private static void collect(TreeNode node, Set<TreeNode> seen, List<TreeNode> nodes) {
+
+        if (!seen.add(node)) {
+            return;
+        }
+        nodes.add(node);
+
+        if (!node.isLeaf()) {
+            collect(node.getLeftNode(), seen, nodes);
+            collect(node.getRightNode(), seen, nodes);
+        }
+    }
+
+    private static Row randomRow(Random random) {
+        return randomRow(random, -1, 0);
+    }
+
+    private static Row randomRow(Random random, int fixedFeature, double fixedValue) {
+        Row row = new Row();
+
+        for (int feature = 0; feature < NUM_FEATURES; ++feature) {
+            row.addFeature(feature == fixedFeature ? fixedValue : random.nextDouble() * 12 - 1);
+        }
+        return row;
+    }
+
+    private static Row constantRow(double value) {
+        Row row = new Row();
+
+        for (int feature = 0; feature < NUM_FEATURES; ++feature) {
+            row.addFeature(value);
+        }
+        return row;
+    }
+
+    private static TreeNode leaf(String label) {
+        TreeNode leaf = new TreeNode();
+        leaf.setLabel(label);
+        return leaf;
+    }
+}
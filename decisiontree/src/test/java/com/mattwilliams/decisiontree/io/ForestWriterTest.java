@@ -0,0 +1,141 @@
+package com.mattwilliams.decisiontree.io;
+
+import com.mattwilliams.decisiontree.base.RandomForest;
+import com.mattwilliams.decisiontree.base.TestForests;
+import com.mattwilliams.decisiontree.base.TreeProvenance;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ForestWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsCompactedForest() throws IOException {
+        RandomForest forest = TestForests.forest();
+        assertTrue(forest.compact().getSharedSubtrees() > 0);
+        byte[] bytes = ForestWriter.toBytes(forest);
+        RandomForest read = ForestReader.fromBytes(bytes, bytes.length);
+
+        // Shared subtrees are written once and shared again when read. Leaves are written
+        // in full, so they aren't shared again.
+        assertEquals(TestForests.distinctSplits(forest), TestForests.distinctSplits(read));
+        assertEquals(forest.getTrees().size(), read.getTrees().size());
+
+        for (int i = 0; i < forest.getTrees().size(); ++i) {
+            TreeProvenance expected = forest.getTreeProvenance(i);
+            TreeProvenance actual = read.getTreeProvenance(i);
+            assertEquals(expected.getSeed(), actual.getSeed());
+            assertEquals(expected.getTrainedAt(), actual.getTrainedAt());
+            assertEquals(expected.getNumRows(), actual.getNumRows());
+            assertEquals(expected.getTrainer(), actual.getTrainer());
+        }
+        TestForests.assertSamePredictions(forest, read, TestForests.edgeRows(forest, 2));
+
+        // Writing what was read gives the same bytes
+        assertArrayEquals(bytes, ForestWriter.toBytes(read));
+    }
+
+    @Test
+    public void roundTripsTreesWithoutProvenance() throws IOException {
+        RandomForest trained = TestForests.forest();
+        RandomForest forest = new RandomForest(trained.getLabelDictionary());
+
+        for (int i = 0; i < 3; ++i) {
+            forest.addTree(trained.getTrees().get(i));
+        }
+        byte[] bytes = ForestWriter.toBytes(forest);
+        RandomForest read = ForestReader.fromBytes(bytes, bytes.length);
+
+        assertNull(read.getTreeProvenance(0));
+        TestForests.assertSamePredictions(forest, read, TestForests.edgeRows(forest, 3));
+    }
+
+    @Test
+    public void savesOverAnExistingModel() throws IOException {
+        RandomForest forest = TestForests.forest();
+        Path file = folder.getRoot().toPath().resolve("model.forest");
+
+        ForestWriter.save(TestForests.forest(), file);
+        forest.compact();
+        ForestWriter.save(forest, file);
+
+        TestForests.assertSamePredictions(forest, ForestReader.load(file), TestForests.edgeRows(forest, 4));
+
+        // Only the model is left in the directory
+        assertArrayEquals(new String[] {"model.forest"}, folder.getRoot().list());
+    }
+
+    @Test
+    public void rejectsCorruptedPayload() {
+        RandomForest forest = TestForests.forest();
+        forest.compact();
+        byte[] bytes = ForestWriter.toBytes(forest);
+
+        // The first tree's length follows the header, which is what an empty forest writes
+        // except for the end marker
+        int position = ForestWriter.toBytes(new RandomForest(forest.getLabelDictionary())).length - 1;
+        int length = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            int b = bytes[position++] & 0xFF;
+            length |= (b & 0x7F) << shift;
+
+            if (b < 0x80) {
+                break;
+            }
+        }
+        assertTrue(length > 0);
+
+        for (int i = position; i < position + length; ++i) {
+            byte[] corrupted = bytes.clone();
+            corrupted[i] ^= 0x01;
+            assertRejected(corrupted, "Flipped bit in payload byte " + (i - position));
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedModel() {
+        byte[] bytes = ForestWriter.toBytes(TestForests.forest());
+
+        for (int length = 0; length < bytes.length; length += 7) {
+            assertRejected(Arrays.copyOf(bytes, length), "Truncated to " + length + " bytes");
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("model.forest");
+        assertRejected(new byte[] {'R', 'F', 'M', 'M', 1, 0, 0, 0}, "Memory-mapped model");
+
+        try {
+            ForestReader.load(file.toPath());
+            fail("Empty file was read");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static void assertRejected(byte[] bytes, String message) {
+
+        try {
+            ForestReader.fromBytes(bytes, bytes.length);
+            fail(message + " was read");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}